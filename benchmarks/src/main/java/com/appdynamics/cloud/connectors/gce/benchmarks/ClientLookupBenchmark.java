@@ -0,0 +1,63 @@
+package com.appdynamics.cloud.connectors.gce.benchmarks;
+
+import com.appdynamics.cloud.connectors.gce.ConfigBinder;
+import com.appdynamics.cloud.connectors.gce.ConnectorLocator;
+import com.google.api.services.compute.Compute;
+import com.singularity.ee.connectors.entity.api.IComputeCenter;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of looking up a validated client through {@link ConnectorLocator#getConnector} from many threads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(32)
+@State(Scope.Benchmark)
+public class ClientLookupBenchmark {
+
+    @Param({"1", "16"})
+    public int serviceAccounts;
+
+    private ConnectorFixture fixture;
+    private ConfigBinder configBinder;
+    private IComputeCenter[] computeCenters;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        fixture = new ConnectorFixture(0, 0, false);
+        configBinder = new ConfigBinder(fixture.getControllerServices());
+        computeCenters = new IComputeCenter[serviceAccounts];
+        for (int i = 0; i < serviceAccounts; i++) {
+            computeCenters[i] = fixture.newComputeCenter("bench-" + i + "@developer.gserviceaccount.com");
+            //Bind, build and validate up front, the benchmark measures lookups
+            ConnectorLocator.getInstance().getConnector(configBinder.bind(computeCenters[i]));
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+    }
+
+    @Benchmark
+    public Compute lookup(Cursor cursor) throws Exception {
+        IComputeCenter computeCenter = computeCenters[cursor.next++ % computeCenters.length];
+        return ConnectorLocator.getInstance().getConnector(configBinder.bind(computeCenter));
+    }
+}
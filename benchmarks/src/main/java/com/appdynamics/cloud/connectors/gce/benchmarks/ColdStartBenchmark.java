@@ -0,0 +1,61 @@
+package com.appdynamics.cloud.connectors.gce.benchmarks;
+
+import com.singularity.ee.connectors.entity.api.IComputeCenter;
+import com.singularity.ee.connectors.entity.api.IMachine;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time of the first createMachine of a fresh compute center, with and without configure having run.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = {
+        "-Dgce.connector.operation.poll.initial.millis=10",
+        "-Dgce.connector.operation.poll.max.millis=50",
+        "-Dgce.connector.batch.window.millis=5"})
+@State(Scope.Benchmark)
+public class ColdStartBenchmark {
+
+    @Param({"false", "true"})
+    public boolean configured;
+
+    /**
+     * Simulated time of one HTTP exchange with GCE.
+     */
+    @Param({"20"})
+    public long latencyMillis;
+
+    private ConnectorFixture fixture;
+    private IComputeCenter computeCenter;
+    private int iteration;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws Exception {
+        fixture = new ConnectorFixture(latencyMillis, 50, false);
+        computeCenter = fixture.newComputeCenter("cold-" + iteration++ + "@developer.gserviceaccount.com");
+        if (configured) {
+            fixture.getConnector().configure(computeCenter);
+            fixture.getConnector().configure(fixture.getImage());
+        }
+    }
+
+    @Benchmark
+    public IMachine firstCreate() throws Exception {
+        return fixture.getConnector().createMachine(computeCenter, fixture.getImage(),
+                fixture.newMachineDescriptor("cold-machine"));
+    }
+}
@@ -0,0 +1,117 @@
+package com.appdynamics.cloud.connectors.gce.benchmarks;
+
+import com.singularity.ee.connectors.entity.api.IComputeCenter;
+import com.singularity.ee.connectors.entity.api.IMachine;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput and latency of createMachine, refreshMachineState and terminateMachine against the fake Compute API.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {
+        "-Dgce.connector.operation.poll.initial.millis=10",
+        "-Dgce.connector.operation.poll.max.millis=50",
+        "-Dgce.connector.batch.window.millis=5",
+        "-Dgce.connector.quota.project.per.second=1000000",
+        "-Dgce.connector.quota.mutations.per.second=1000000",
+        "-Dgce.connector.quota.reads.per.second=1000000",
+        "-Dgce.connector.quota.polls.per.second=1000000",
+        "-Dgce.connector.provisioner.max.inflight=100000"})
+@Threads(8)
+@State(Scope.Benchmark)
+public class ConnectorBenchmark {
+
+    /**
+     * Simulated time of one HTTP exchange with GCE.
+     */
+    @Param({"0", "20"})
+    public long latencyMillis;
+
+    /**
+     * Simulated time from the creation of an operation until it is DONE.
+     */
+    @Param({"50"})
+    public long operationMillis;
+
+    private ConnectorFixture fixture;
+    private IComputeCenter computeCenter;
+
+    private final AtomicLong instanceIds = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        fixture = new ConnectorFixture(latencyMillis, operationMillis, false);
+        computeCenter = fixture.newComputeCenter("bench@developer.gserviceaccount.com");
+    }
+
+    /**
+     * A machine of its own for each call, already running in the fake.
+     */
+    @State(Scope.Thread)
+    public static class RunningMachine {
+
+        private IMachine machine;
+
+        @Setup(Level.Invocation)
+        public void setUp(ConnectorBenchmark benchmark) {
+            String name = benchmark.nextInstanceName();
+            benchmark.fixture.getTransport().putRunningInstance(ConnectorFixture.PROJECT_ID, ConnectorFixture.ZONE, name);
+            machine = benchmark.fixture.newMachine(name, benchmark.computeCenter);
+        }
+    }
+
+    /**
+     * One long lived machine per thread which is refreshed over and over.
+     */
+    @State(Scope.Thread)
+    public static class RefreshedMachine {
+
+        private IMachine machine;
+
+        @Setup(Level.Trial)
+        public void setUp(ConnectorBenchmark benchmark) {
+            String name = benchmark.nextInstanceName();
+            benchmark.fixture.getTransport().putRunningInstance(ConnectorFixture.PROJECT_ID, ConnectorFixture.ZONE, name);
+            machine = benchmark.fixture.newMachine(name, benchmark.computeCenter);
+        }
+    }
+
+    @Benchmark
+    public IMachine create() throws Exception {
+        String name = nextInstanceName();
+        return fixture.getConnector().createMachine(computeCenter, fixture.getImage(), fixture.newMachineDescriptor(name));
+    }
+
+    @Benchmark
+    public IMachine refresh(RefreshedMachine refreshed) throws Exception {
+        fixture.getConnector().refreshMachineState(refreshed.machine);
+        return refreshed.machine;
+    }
+
+    @Benchmark
+    public IMachine terminate(RunningMachine running) throws Exception {
+        fixture.getConnector().terminateMachine(running.machine);
+        return running.machine;
+    }
+
+    private String nextInstanceName() {
+        return "bench-" + instanceIds.incrementAndGet();
+    }
+}
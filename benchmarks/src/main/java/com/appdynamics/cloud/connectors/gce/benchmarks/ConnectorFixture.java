@@ -0,0 +1,253 @@
+package com.appdynamics.cloud.connectors.gce.benchmarks;
+
+import com.appdynamics.cloud.connectors.gce.FakeComputeTransport;
+import com.appdynamics.cloud.connectors.gce.GCEConnector;
+import com.appdynamics.cloud.connectors.gce.OperationJournal;
+import com.appdynamics.cloud.connectors.gce.Utils;
+import com.singularity.ee.connectors.api.IControllerServices;
+import com.singularity.ee.connectors.entity.api.IAccount;
+import com.singularity.ee.connectors.entity.api.IComputeCenter;
+import com.singularity.ee.connectors.entity.api.IImage;
+import com.singularity.ee.connectors.entity.api.IMachine;
+import com.singularity.ee.connectors.entity.api.IMachineDescriptor;
+import com.singularity.ee.connectors.entity.api.IProperty;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link GCEConnector} wired to a {@link FakeComputeTransport}, with controller entities made of dynamic proxies.
+ */
+public class ConnectorFixture {
+
+    public static final String PROJECT_ID = "bench-project";
+    public static final String ZONE = "us-central1-a";
+    public static final String IMAGE = "debian-7-wheezy";
+
+    private static final String KEY_PASSWORD = "notasecret";
+    private static final String KEY_ALIAS = "privatekey";
+
+    private final FakeComputeTransport transport;
+    private final File keyFile;
+    private final IControllerServices controllerServices;
+    private final GCEConnector connector;
+    private final IImage image;
+    private final boolean asynchronous;
+
+    public ConnectorFixture(long latencyMillis, long operationMillis, boolean asynchronous) throws IOException {
+        this.asynchronous = asynchronous;
+        transport = new FakeComputeTransport(latencyMillis, operationMillis);
+        transport.install();
+
+        keyFile = createKeyFile();
+        useFreshJournal();
+        controllerServices = proxy(IControllerServices.class, new ControllerServicesHandler());
+        connector = new GCEConnector();
+        connector.setControllerServices(controllerServices);
+
+        Map<String, String> imageProperties = new HashMap<String, String>();
+        imageProperties.put(Utils.MACHINE_TYPE_KEY_PROP, "n1-standard-1");
+        imageProperties.put(Utils.IMAGE_KEY_PROP, IMAGE);
+        image = entity(IImage.class, imageProperties);
+    }
+
+    public FakeComputeTransport getTransport() {
+        return transport;
+    }
+
+    public GCEConnector getConnector() {
+        return connector;
+    }
+
+    public IControllerServices getControllerServices() {
+        return controllerServices;
+    }
+
+    public IImage getImage() {
+        return image;
+    }
+
+    /**
+     * Compute center of the given service account in the benchmark project.
+     */
+    public IComputeCenter newComputeCenter(String serviceAccountId) {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put(Utils.SERVICE_ACCOUNT_KEY_PROP, serviceAccountId);
+        properties.put(Utils.SERVICE_ACCOUNT_P12_FILE_KEY_PROP, keyFile.getAbsolutePath());
+        properties.put(Utils.PROJECT_ID_KEY_PROP, PROJECT_ID);
+        properties.put(Utils.ASYNCHRONOUS_PROVISIONING_KEY_PROP, Boolean.toString(asynchronous));
+        IComputeCenter computeCenter = entity(IComputeCenter.class, properties);
+
+        Map<String, Object> account = new HashMap<String, Object>();
+        account.put("Name", "bench-account");
+        ((BeanHandler) Proxy.getInvocationHandler(computeCenter)).values.put("Account",
+                proxy(IAccount.class, new BeanHandler(account)));
+        return computeCenter;
+    }
+
+    public IMachineDescriptor newMachineDescriptor(String instanceName) {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put(Utils.INSTANCE_NAME_KEY_PROP, instanceName);
+        properties.put(Utils.ZONE_KEY_PROP, ZONE);
+        return entity(IMachineDescriptor.class, properties);
+    }
+
+    /**
+     * Machine as the controller hands it back to the connector, for an instance which may or may not exist.
+     */
+    public IMachine newMachine(String instanceName, IComputeCenter computeCenter) {
+        return machine(instanceName, computeCenter, newMachineDescriptor(instanceName));
+    }
+
+    private IMachine machine(String name, IComputeCenter computeCenter, IMachineDescriptor machineDescriptor) {
+        Map<String, Object> values = new ConcurrentHashMap<String, Object>();
+        values.put("Name", name);
+        values.put("ComputeCenter", computeCenter);
+        values.put("MachineDescriptor", machineDescriptor);
+        return proxy(IMachine.class, new BeanHandler(values));
+    }
+
+    private static <T> T entity(Class<T> type, Map<String, String> properties) {
+        IProperty property = proxy(IProperty.class, new BeanHandler(new HashMap<String, Object>(properties)));
+        Map<String, Object> values = new ConcurrentHashMap<String, Object>();
+        values.put("Properties", new IProperty[]{property});
+        return proxy(type, new BeanHandler(values));
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(ConnectorFixture.class.getClassLoader(), new Class[]{type}, handler));
+    }
+
+    /**
+     * Points the operation journal at an empty file of this fork, so operations left in flight by an earlier run are
+     * not recovered against the fake. Only takes effect before the journal is first used.
+     */
+    private static synchronized void useFreshJournal() throws IOException {
+        if (System.getProperty(OperationJournal.FILE_PROPERTY_KEY) == null) {
+            File file = File.createTempFile("gce-bench", ".journal");
+            file.deleteOnExit();
+            new File(file.getPath() + ".lock").deleteOnExit();
+            System.setProperty(OperationJournal.FILE_PROPERTY_KEY, file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * PKCS12 key store as GCE hands out for service accounts, made with the JDK keytool.
+     */
+    private static File createKeyFile() throws IOException {
+        File file = File.createTempFile("gce-bench", ".p12");
+        if (!file.delete()) {
+            throw new IOException("Unable to prepare " + file);
+        }
+        file.deleteOnExit();
+
+        String keytool = new File(new File(System.getProperty("java.home"), "bin"), "keytool").getAbsolutePath();
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", KEY_ALIAS, "-keyalg", "RSA",
+                "-keysize", "2048", "-dname", "CN=gce-connector-benchmark", "-validity", "1",
+                "-storetype", "PKCS12", "-keystore", file.getAbsolutePath(),
+                "-storepass", KEY_PASSWORD, "-keypass", KEY_PASSWORD).redirectErrorStream(true).start();
+        try {
+            if (process.waitFor() != 0 || !file.exists()) {
+                throw new IOException("keytool was unable to create " + file);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while creating " + file, e);
+        }
+        return file;
+    }
+
+    private class ControllerServicesHandler implements InvocationHandler {
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if ("getStringPropertyValueByName".equals(name)) {
+                IProperty[] properties = (IProperty[]) args[0];
+                BeanHandler handler = (BeanHandler) Proxy.getInvocationHandler(properties[0]);
+                return handler.values.get(args[1]);
+            }
+            if ("createMachineInstance".equals(name)) {
+                return machine((String) args[0], (IComputeCenter) args[2], (IMachineDescriptor) args[3]);
+            }
+            if ("getDefaultAgentPort".equals(name)) {
+                return 8090;
+            }
+            return defaultValue(method.getReturnType());
+        }
+    }
+
+    /**
+     * Keeps getX/setX/isX values in a map, and answers anything else with a default.
+     */
+    private static class BeanHandler implements InvocationHandler {
+
+        private final Map<String, Object> values;
+
+        private BeanHandler(Map<String, Object> values) {
+            this.values = values;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if ("equals".equals(name) && args != null && args.length == 1) {
+                return proxy == args[0];
+            }
+            if ("hashCode".equals(name) && (args == null || args.length == 0)) {
+                return System.identityHashCode(proxy);
+            }
+            if ("toString".equals(name) && (args == null || args.length == 0)) {
+                return String.valueOf(values.get("Name"));
+            }
+            if (name.startsWith("set") && args != null && args.length == 1) {
+                if (args[0] == null) {
+                    values.remove(name.substring(3));
+                } else {
+                    values.put(name.substring(3), args[0]);
+                }
+                return null;
+            }
+            Object value = null;
+            if (name.startsWith("get") && (args == null || args.length == 0)) {
+                value = values.get(name.substring(3));
+            } else if (name.startsWith("is") && (args == null || args.length == 0)) {
+                value = values.get(name.substring(2));
+            }
+            return value != null ? value : defaultValue(method.getReturnType());
+        }
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        }
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == char.class) {
+            return '\0';
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == float.class) {
+            return 0f;
+        }
+        if (type == double.class) {
+            return 0d;
+        }
+        if (type == byte.class) {
+            return (byte) 0;
+        }
+        if (type == short.class) {
+            return (short) 0;
+        }
+        return 0;
+    }
+}
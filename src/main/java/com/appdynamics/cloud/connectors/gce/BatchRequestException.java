@@ -0,0 +1,23 @@
+package com.appdynamics.cloud.connectors.gce;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import java.io.IOException;
+
+/**
+ * Failure of a single request inside a batch, carrying the error details GCE returned for it.
+ */
+public class BatchRequestException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final GoogleJsonError details;
+
+    public BatchRequestException(GoogleJsonError details) {
+        super(details.getCode() + " " + details.getMessage());
+        this.details = details;
+    }
+
+    public GoogleJsonError getDetails() {
+        return details;
+    }
+}
@@ -0,0 +1,233 @@
+package com.appdynamics.cloud.connectors.gce;
+
+import com.google.api.services.compute.Compute;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds one Compute client per service account, built once and evicted when idle.
+ */
+public class ClientRegistry {
+
+    public static final String MAX_CLIENTS_PROPERTY_KEY = "gce.connector.client.max";
+    public static final String IDLE_MINUTES_PROPERTY_KEY = "gce.connector.client.idle.minutes";
+
+    private static final int DEFAULT_MAX_CLIENTS = 100;
+    private static final int DEFAULT_IDLE_MINUTES = 60;
+    private static final long EVICTION_INTERVAL_SECONDS = 60;
+
+    private static final Logger LOG = Logger.getLogger(ClientRegistry.class.getName());
+
+    /**
+     * Builds the client of a service account.
+     */
+    public interface ClientFactory {
+        Compute create(ServiceAccountKey key);
+    }
+
+    private final ConcurrentMap<ServiceAccountKey, Entry> clients = new ConcurrentHashMap<ServiceAccountKey, Entry>();
+
+    private final ClientFactory factory;
+
+    private final int maxClients;
+    private final long idleMillis;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong buildNanos = new AtomicLong();
+
+    public ClientRegistry(ClientFactory factory) {
+        this.factory = factory;
+        maxClients = Integer.getInteger(MAX_CLIENTS_PROPERTY_KEY, DEFAULT_MAX_CLIENTS);
+        idleMillis = TimeUnit.MINUTES.toMillis(Integer.getInteger(IDLE_MINUTES_PROPERTY_KEY, DEFAULT_IDLE_MINUTES));
+
+        ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("gce-client-evictor-%d").build());
+        executorService.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    evict();
+                } catch (RuntimeException e) {
+                    LOG.log(Level.WARNING, "Unable to evict idle clients", e);
+                }
+            }
+        }, EVICTION_INTERVAL_SECONDS, EVICTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Returns the client of the service account, building it if there is none yet.
+     */
+    public Compute get(ServiceAccountKey key) {
+        Entry entry = clients.get(key);
+        if (entry == null) {
+            Entry newEntry = new Entry();
+            entry = clients.putIfAbsent(key, newEntry);
+            if (entry == null) {
+                misses.incrementAndGet();
+                build(key, newEntry);
+                entry = newEntry;
+            } else {
+                hits.incrementAndGet();
+            }
+        } else {
+            hits.incrementAndGet();
+        }
+
+        entry.lastAccess = System.currentTimeMillis();
+        return entry.await();
+    }
+
+    /**
+     * Drops the client of the service account right away rather than when it goes idle. Returns the released
+     * client, or null if there was none.
+     */
+    public Compute release(ServiceAccountKey key) {
+        Entry entry = clients.get(key);
+        if (entry == null || !entry.client.isDone()) {
+            //Nothing built yet, a build in flight goes idle and is evicted later
+            return null;
+        }
+        remove(key, entry, "released");
+        return entry.await();
+    }
+
+    /**
+     * Number of lookups served by an existing or in-flight client.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Number of lookups which had to build a client.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Total time spent building clients, in milliseconds.
+     */
+    public long getBuildTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(buildNanos.get());
+    }
+
+    public int size() {
+        return clients.size();
+    }
+
+    private void build(ServiceAccountKey key, Entry entry) {
+        long start = System.nanoTime();
+        ConnectorMetrics.Timer timer = ConnectorMetrics.getInstance().start(ConnectorMetrics.Step.CLIENT_BUILD);
+        try {
+            entry.client.set(factory.create(key));
+            timer.stop();
+        } catch (RuntimeException e) {
+            //Do not cache the failure, the next caller builds again
+            timer.stop(e);
+            clients.remove(key, entry);
+            entry.client.setException(e);
+        } catch (Error e) {
+            timer.stop(e);
+            clients.remove(key, entry);
+            entry.client.setException(e);
+            throw e;
+        } finally {
+            buildNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private void evict() {
+        long idleCutoff = System.currentTimeMillis() - idleMillis;
+        List<Map.Entry<ServiceAccountKey, Entry>> built = new ArrayList<Map.Entry<ServiceAccountKey, Entry>>();
+        for (Map.Entry<ServiceAccountKey, Entry> mapEntry : clients.entrySet()) {
+            Entry entry = mapEntry.getValue();
+            if (!entry.client.isDone()) {
+                continue;
+            }
+            if (entry.lastAccess < idleCutoff) {
+                remove(mapEntry.getKey(), entry, "idle");
+            } else {
+                built.add(mapEntry);
+            }
+        }
+
+        int excess = built.size() - maxClients;
+        if (excess > 0) {
+            Collections.sort(built, new Comparator<Map.Entry<ServiceAccountKey, Entry>>() {
+                @Override
+                public int compare(Map.Entry<ServiceAccountKey, Entry> e1, Map.Entry<ServiceAccountKey, Entry> e2) {
+                    long a1 = e1.getValue().lastAccess;
+                    long a2 = e2.getValue().lastAccess;
+                    return a1 < a2 ? -1 : (a1 == a2 ? 0 : 1);
+                }
+            });
+            for (Map.Entry<ServiceAccountKey, Entry> mapEntry : built.subList(0, excess)) {
+                remove(mapEntry.getKey(), mapEntry.getValue(), "least recently used");
+            }
+        }
+    }
+
+    private void remove(ServiceAccountKey key, Entry entry, String reason) {
+        if (!clients.remove(key, entry)) {
+            return;
+        }
+        evictions.incrementAndGet();
+        LOG.log(Level.FINE, "Evicting " + reason + " client of " + key);
+
+        //The HTTP transport is shared by every client, only the per client state is released
+        try {
+            RequestBatcher.getInstance().forget(entry.client.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            //Never built, nothing to release
+        }
+        CredentialManager.getInstance().release(key);
+    }
+
+    private static class Entry {
+
+        private final SettableFuture<Compute> client = SettableFuture.create();
+
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        private Compute await() {
+            try {
+                return client.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for the Compute client", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new RuntimeException(cause.getMessage(), cause);
+            }
+        }
+    }
+}
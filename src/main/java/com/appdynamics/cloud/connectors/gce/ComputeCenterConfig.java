@@ -0,0 +1,109 @@
+package com.appdynamics.cloud.connectors.gce;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Validated properties of a compute center, bound by the {@link ConfigBinder}.
+ */
+public final class ComputeCenterConfig {
+
+    private static final String COMPUTE_URL = "https://www.googleapis.com/compute/v1/projects/";
+
+    private final ServiceAccountKey serviceAccountKey;
+    private final String projectId;
+    private final boolean asynchronousProvisioning;
+    private final boolean inlineBootDisk;
+    private final long warmDiskMaxAgeMillis;
+
+    private final String projectUrl;
+    private final String networkUrl;
+
+    /**
+     * URLs below each zone of the project, built on first use as zones are only known from the descriptors.
+     */
+    private final ConcurrentMap<String, ZoneUrls> zoneUrls = new ConcurrentHashMap<String, ZoneUrls>();
+
+    public ComputeCenterConfig(ServiceAccountKey serviceAccountKey, String projectId, boolean asynchronousProvisioning,
+                               boolean inlineBootDisk, long warmDiskMaxAgeMillis) {
+        this.serviceAccountKey = serviceAccountKey;
+        this.projectId = projectId;
+        this.asynchronousProvisioning = asynchronousProvisioning;
+        this.inlineBootDisk = inlineBootDisk;
+        this.warmDiskMaxAgeMillis = warmDiskMaxAgeMillis;
+        this.projectUrl = COMPUTE_URL + projectId;
+        this.networkUrl = projectUrl + "/global/networks/default";
+    }
+
+    public ServiceAccountKey getServiceAccountKey() {
+        return serviceAccountKey;
+    }
+
+    public String getProjectId() {
+        return projectId;
+    }
+
+    public boolean isAsynchronousProvisioning() {
+        return asynchronousProvisioning;
+    }
+
+    public boolean isInlineBootDisk() {
+        return inlineBootDisk;
+    }
+
+    public long getWarmDiskMaxAgeMillis() {
+        return warmDiskMaxAgeMillis;
+    }
+
+    public String getProjectUrl() {
+        return projectUrl;
+    }
+
+    /**
+     * URL of the default network of the project, which every instance is attached to.
+     */
+    public String getNetworkUrl() {
+        return networkUrl;
+    }
+
+    public String getMachineTypeUrl(String zone, String machineType) {
+        ZoneUrls urls = getZoneUrls(zone);
+        String url = urls.machineTypeUrls.get(machineType);
+        if (url == null) {
+            url = urls.zoneUrl + "/machineTypes/" + machineType;
+            urls.machineTypeUrls.putIfAbsent(machineType, url);
+        }
+        return url;
+    }
+
+    public String getDiskUrl(String zone, String diskName) {
+        return getZoneUrls(zone).zoneUrl + "/disks/" + diskName;
+    }
+
+    private ZoneUrls getZoneUrls(String zone) {
+        ZoneUrls urls = zoneUrls.get(zone);
+        if (urls == null) {
+            ZoneUrls created = new ZoneUrls(projectUrl + "/zones/" + zone);
+            urls = zoneUrls.putIfAbsent(zone, created);
+            if (urls == null) {
+                urls = created;
+            }
+        }
+        return urls;
+    }
+
+    @Override
+    public String toString() {
+        return serviceAccountKey + "@" + projectId;
+    }
+
+    private static class ZoneUrls {
+
+        private final String zoneUrl;
+        private final ConcurrentMap<String, String> machineTypeUrls = new ConcurrentHashMap<String, String>();
+
+        private ZoneUrls(String zoneUrl) {
+            this.zoneUrl = zoneUrl;
+        }
+    }
+}
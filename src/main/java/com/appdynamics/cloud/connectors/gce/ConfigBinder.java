@@ -0,0 +1,162 @@
+package com.appdynamics.cloud.connectors.gce;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.singularity.ee.connectors.api.IControllerServices;
+import com.singularity.ee.connectors.api.InvalidObjectException;
+import com.singularity.ee.connectors.entity.api.IComputeCenter;
+import com.singularity.ee.connectors.entity.api.IImage;
+import com.singularity.ee.connectors.entity.api.IMachineDescriptor;
+import com.singularity.ee.connectors.entity.api.IProperty;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binds the properties of the controller entities into validated, cached configs.
+ */
+public class ConfigBinder {
+
+    public static final String TTL_SECONDS_PROPERTY_KEY = "gce.connector.config.ttl.seconds";
+
+    private static final int DEFAULT_TTL_SECONDS = 300;
+
+    private static final int DEFAULT_WARM_DISK_MAX_AGE_MINUTES = 60;
+
+    private final IControllerServices controllerServices;
+
+    private final Cache<IComputeCenter, Bound<ComputeCenterConfig>> computeCenters;
+    private final Cache<IImage, Bound<ImageConfig>> images;
+    private final Cache<IMachineDescriptor, Bound<MachineDescriptorConfig>> machineDescriptors;
+
+    public ConfigBinder(IControllerServices controllerServices) {
+        this.controllerServices = controllerServices;
+        int ttlSeconds = Integer.getInteger(TTL_SECONDS_PROPERTY_KEY, DEFAULT_TTL_SECONDS);
+        computeCenters = newCache(ttlSeconds);
+        images = newCache(ttlSeconds);
+        machineDescriptors = newCache(ttlSeconds);
+    }
+
+    private static <K, V> Cache<K, V> newCache(int ttlSeconds) {
+        //Weak keys are compared by identity, and let the controller drop entities it no longer uses
+        return CacheBuilder.newBuilder().weakKeys().expireAfterWrite(ttlSeconds, TimeUnit.SECONDS).build();
+    }
+
+    public ComputeCenterConfig bind(IComputeCenter computeCenter) throws InvalidObjectException {
+        IProperty[] properties = computeCenter.getProperties();
+        Bound<ComputeCenterConfig> bound = computeCenters.getIfPresent(computeCenter);
+        if (bound != null && bound.properties == properties) {
+            return bound.config;
+        }
+
+        String serviceAccountId = getRequired(properties, Utils.SERVICE_ACCOUNT_KEY_PROP);
+        String serviceAccountP12FilePath = getRequired(properties, Utils.SERVICE_ACCOUNT_P12_FILE_KEY_PROP);
+        File p12File = new File(serviceAccountP12FilePath);
+        if (!p12File.isFile() || !p12File.canRead()) {
+            throw new InvalidObjectException("The specified " + Utils.SERVICE_ACCOUNT_P12_FILE_KEY_PROP + " " +
+                    serviceAccountP12FilePath + " is not a readable file.");
+        }
+        String projectId = getRequired(properties, Utils.PROJECT_ID_KEY_PROP);
+        boolean asynchronousProvisioning = getBoolean(properties, Utils.ASYNCHRONOUS_PROVISIONING_KEY_PROP);
+        boolean inlineBootDisk = getBoolean(properties, Utils.INLINE_BOOT_DISK_KEY_PROP);
+        int warmDiskMaxAgeMinutes = getInt(properties, Utils.WARM_DISK_MAX_AGE_KEY_PROP,
+                DEFAULT_WARM_DISK_MAX_AGE_MINUTES, 1);
+
+        ComputeCenterConfig config = new ComputeCenterConfig(
+                new ServiceAccountKey(serviceAccountId, serviceAccountP12FilePath), projectId,
+                asynchronousProvisioning, inlineBootDisk, TimeUnit.MINUTES.toMillis(warmDiskMaxAgeMinutes));
+        computeCenters.put(computeCenter, new Bound<ComputeCenterConfig>(properties, config));
+        return config;
+    }
+
+    public ImageConfig bind(IImage image) throws InvalidObjectException {
+        IProperty[] properties = image.getProperties();
+        Bound<ImageConfig> bound = images.getIfPresent(image);
+        if (bound != null && bound.properties == properties) {
+            return bound.config;
+        }
+
+        ImageConfig config = new ImageConfig(getRequired(properties, Utils.MACHINE_TYPE_KEY_PROP),
+                getRequired(properties, Utils.IMAGE_KEY_PROP), getInt(properties, Utils.WARM_POOL_SIZE_KEY_PROP, 0, 0));
+        images.put(image, new Bound<ImageConfig>(properties, config));
+        return config;
+    }
+
+    public MachineDescriptorConfig bind(IMachineDescriptor machineDescriptor) throws InvalidObjectException {
+        IProperty[] properties = machineDescriptor.getProperties();
+        Bound<MachineDescriptorConfig> bound = machineDescriptors.getIfPresent(machineDescriptor);
+        if (bound != null && bound.properties == properties) {
+            return bound.config;
+        }
+
+        MachineDescriptorConfig config = new MachineDescriptorConfig(
+                getRequired(properties, Utils.INSTANCE_NAME_KEY_PROP), getRequired(properties, Utils.ZONE_KEY_PROP));
+        machineDescriptors.put(machineDescriptor, new Bound<MachineDescriptorConfig>(properties, config));
+        return config;
+    }
+
+    /**
+     * Forgets the config of the compute center, so it is read again the next time it is bound.
+     */
+    public void unbind(IComputeCenter computeCenter) {
+        computeCenters.invalidate(computeCenter);
+    }
+
+    public void unbind(IImage image) {
+        images.invalidate(image);
+    }
+
+    private String getValue(IProperty[] properties, String name) {
+        String value = controllerServices.getStringPropertyValueByName(properties, name);
+        return value == null ? "" : value.trim();
+    }
+
+    private String getRequired(IProperty[] properties, String name) throws InvalidObjectException {
+        String value = getValue(properties, name);
+        if (value.length() == 0) {
+            throw new InvalidObjectException("The " + name + " is required.");
+        }
+        return value;
+    }
+
+    private boolean getBoolean(IProperty[] properties, String name) throws InvalidObjectException {
+        String value = getValue(properties, name);
+        if (value.length() == 0 || "false".equalsIgnoreCase(value)) {
+            return false;
+        }
+        if ("true".equalsIgnoreCase(value)) {
+            return true;
+        }
+        throw new InvalidObjectException("The specified " + name + " " + value + " is not true or false.");
+    }
+
+    private int getInt(IProperty[] properties, String name, int defaultValue, int minimum) throws InvalidObjectException {
+        String value = getValue(properties, name);
+        if (value.length() == 0) {
+            return defaultValue;
+        }
+        try {
+            int result = Integer.parseInt(value);
+            if (result >= minimum) {
+                return result;
+            }
+        } catch (NumberFormatException e) {
+            //Reported below
+        }
+        throw new InvalidObjectException("The specified " + name + " " + value + " is not a number of at least " +
+                minimum + ".");
+    }
+
+    /**
+     * A config together with the properties array it was read from.
+     */
+    private static class Bound<C> {
+
+        private final IProperty[] properties;
+        private final C config;
+
+        private Bound(IProperty[] properties, C config) {
+            this.properties = properties;
+            this.config = config;
+        }
+    }
+}
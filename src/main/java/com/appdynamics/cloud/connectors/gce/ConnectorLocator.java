@@ -1,21 +1,12 @@
 package com.appdynamics.cloud.connectors.gce;
 
-import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
-import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
 import com.google.api.services.compute.Compute;
-import com.singularity.ee.connectors.api.IControllerServices;
+import com.singularity.ee.connectors.api.ConnectorException;
 import com.singularity.ee.connectors.api.InvalidObjectException;
-import com.singularity.ee.connectors.entity.api.IProperty;
-import java.io.File;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -23,12 +14,17 @@ public class ConnectorLocator {
 
     private static final ConnectorLocator INSTANCE = new ConnectorLocator();
 
-    private final Map<String, Compute> serviceIdVsCompute = new HashMap<String, Compute>();
-
     public static final String SCOPE_COMPUTE = "https://www.googleapis.com/auth/compute";
     public static final String APPLICATION_NAME = "AppD-GCEConnector/1.0";
 
-    private final ReadWriteLock rwLock = new ReentrantReadWriteLock();
+    private final ClientRegistry clientRegistry = new ClientRegistry(new ClientRegistry.ClientFactory() {
+        @Override
+        public Compute create(ServiceAccountKey key) {
+            return createGoogleCompute(key.getServiceAccountId(), key.getServiceAccountP12FilePath());
+        }
+    });
+
+    private final ValidationCache validationCache = new ValidationCache();
 
     private static final Logger LOG = Logger.getLogger(ConnectorLocator.class.getName());
 
@@ -42,73 +38,49 @@ public class ConnectorLocator {
         return INSTANCE;
     }
 
-    public Compute getConnector(IProperty[] properties, IControllerServices controllerServices) throws InvalidObjectException {
-        
-        String serviceAccountId = Utils.getServiceAccountId(properties, controllerServices);
-        String serviceAccountP12FilePath = Utils.getServiceAccountP12File(properties, controllerServices);
-
-        Compute compute = getCompute(serviceAccountId);
+    public Compute getConnector(ComputeCenterConfig computeCenter) throws InvalidObjectException, ConnectorException {
+        ServiceAccountKey key = computeCenter.getServiceAccountKey();
 
-        if (compute == null) {
-            compute = setCompute(serviceAccountId, serviceAccountP12FilePath);
-        }
+        Compute compute = clientRegistry.get(key);
 
-        String projectId = Utils.getProjectId(properties, controllerServices);
+        validationCache.validate(compute, key.getServiceAccountId(), key.getServiceAccountP12FilePath(),
+                computeCenter.getProjectId());
 
-        validate(compute, projectId);
-        
         return compute;
     }
 
-    private void validate(Compute compute, String projectId) throws InvalidObjectException{
-        try {
-            compute.projects().get(projectId).execute();
-        } catch (Exception e) {
-            LOG.log(Level.WARNING, "The specified " + Utils.SERVICE_ACCOUNT_KEY_PROP +
-                    " and/or " + Utils.SERVICE_ACCOUNT_P12_FILE_KEY_PROP + " is not valid.", e);
-
-            throw new InvalidObjectException("The specified " + Utils.SERVICE_ACCOUNT_KEY_PROP +
-                    " and/or " + Utils.SERVICE_ACCOUNT_P12_FILE_KEY_PROP + " is not valid.", e);
-        }
+    /**
+     * Drops the cached validation result for the given compute center, forcing the next {@link #getConnector} call
+     * to check the credentials against GCE again.
+     */
+    public void invalidateValidation(ComputeCenterConfig computeCenter) {
+        ServiceAccountKey key = computeCenter.getServiceAccountKey();
+        validationCache.invalidate(key.getServiceAccountId(), key.getServiceAccountP12FilePath(),
+                computeCenter.getProjectId());
     }
 
-    private Compute setCompute(String serviceAccountId, String serviceAccountP12FilePath) {
-        rwLock.writeLock().lock();
-        try {
-            Compute googleCompute = createGoogleCompute(serviceAccountId, serviceAccountP12FilePath);
-            serviceIdVsCompute.put(serviceAccountId, googleCompute);
-            return googleCompute;
-        } finally {
-            rwLock.writeLock().unlock();
-        }
+    /**
+     * Releases the client and credential of the compute center and forgets its validation, for a compute center
+     * which is no longer configured. Returns the released client, or null if there was none.
+     */
+    public Compute release(ComputeCenterConfig computeCenter) {
+        invalidateValidation(computeCenter);
+        return clientRegistry.release(computeCenter.getServiceAccountKey());
     }
 
-    private Compute getCompute(String serviceAccountId) {
-        rwLock.readLock().lock();
-        try {
-            Compute compute = serviceIdVsCompute.get(serviceAccountId);
-            if (compute != null) {
-                return compute;
-            }
-        } finally {
-            rwLock.readLock().unlock();
-        }
-        return null;
+    public ClientRegistry getClientRegistry() {
+        return clientRegistry;
     }
 
     private Compute createGoogleCompute(String serviceAccountId, String serviceAccountP12FilePath) {
-        NetHttpTransport transport = null;
-        JacksonFactory jsonFactory = new JacksonFactory();
-        GoogleCredential credential = null;
+        SharedTransport sharedTransport = SharedTransport.getInstance();
+        HttpTransport transport = null;
+        HttpRequestInitializer credential = null;
 
         try {
-            transport = GoogleNetHttpTransport.newTrustedTransport();
-            credential = new GoogleCredential.Builder().setTransport(transport)
-                    .setJsonFactory(jsonFactory)
-                    .setServiceAccountId(serviceAccountId)
-                    .setServiceAccountScopes(Collections.singleton(SCOPE_COMPUTE))
-                    .setServiceAccountPrivateKeyFromP12File(new File(serviceAccountP12FilePath))
-                    .build();
+            transport = sharedTransport.getTransport();
+            credential = CredentialManager.getInstance().getCredential(
+                    new ServiceAccountKey(serviceAccountId, serviceAccountP12FilePath));
         } catch (GeneralSecurityException e) {
             LOG.log(Level.WARNING, e.getMessage(), e);
             throw new RuntimeException(e.getMessage(), e);
@@ -118,7 +90,7 @@ public class ConnectorLocator {
         }
 
         return new Compute.Builder(
-                transport, jsonFactory, null).setApplicationName(APPLICATION_NAME)
+                transport, sharedTransport.getJsonFactory(), null).setApplicationName(APPLICATION_NAME)
                 .setHttpRequestInitializer(credential).build();
     }
 }
@@ -0,0 +1,466 @@
+package com.appdynamics.cloud.connectors.gce;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Per step latency and error counts plus gauges, published as the MBean {@value #OBJECT_NAME}.
+ */
+public class ConnectorMetrics implements DynamicMBean {
+
+    public static final String OBJECT_NAME = "com.appdynamics.cloud.connectors.gce:type=ConnectorMetrics";
+
+    private static final Logger LOG = Logger.getLogger(ConnectorMetrics.class.getName());
+
+    private static final ConnectorMetrics INSTANCE = new ConnectorMetrics();
+
+    /**
+     * Timed steps.
+     */
+    public enum Step {
+        CLIENT_BUILD("ClientBuild"),
+        VALIDATION("Validation"),
+        CREATE("Create"),
+        DISK_INSERT("DiskInsert"),
+        OPERATION_WAIT("OperationWait"),
+        INSTANCE_INSERT("InstanceInsert"),
+        REFRESH("Refresh"),
+        TERMINATE("Terminate"),
+        RESTART("Restart"),
+        DISK_DELETE("DiskDelete");
+
+        private final String attributePrefix;
+
+        Step(String attributePrefix) {
+            this.attributePrefix = attributePrefix;
+        }
+    }
+
+    /**
+     * Current value of something the connector holds, read when the MBean is.
+     */
+    public interface Gauge {
+        Number getValue();
+    }
+
+    private final StepStats[] stepStats = new StepStats[Step.values().length];
+    private final Histogram pollsPerOperation = new Histogram();
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+    /**
+     * Private constructor on singleton.
+     */
+    private ConnectorMetrics() {
+        for (Step step : Step.values()) {
+            stepStats[step.ordinal()] = new StepStats();
+        }
+        registerSharedGauges();
+        register();
+    }
+
+    public static ConnectorMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts timing one call of the step; the returned timer must be stopped exactly once.
+     */
+    public Timer start(Step step) {
+        stepStats[step.ordinal()].inFlight.incrementAndGet();
+        return new Timer(step, System.nanoTime());
+    }
+
+    /**
+     * Records how many polls it took until an operation was DONE.
+     */
+    public void recordPolls(int polls) {
+        pollsPerOperation.record(polls);
+    }
+
+    /**
+     * Publishes a gauge under the given attribute name, replacing any gauge published under it before.
+     */
+    public void registerGauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Adds a gauge of one of several owners, such as each instance of the connector, to the attribute of the given
+     * name, which then reads the sum of the gauges added to it until they are removed again.
+     */
+    public GaugeRegistration addGauge(String name, final Gauge gauge) {
+        Gauge summed = gauges.get(name);
+        if (summed == null) {
+            Gauge newSummed = new SummedGauge();
+            summed = gauges.putIfAbsent(name, newSummed);
+            if (summed == null) {
+                summed = newSummed;
+            }
+        }
+        if (!(summed instanceof SummedGauge)) {
+            throw new IllegalStateException("Gauge " + name + " is registered alone");
+        }
+        final List<Gauge> parts = ((SummedGauge) summed).parts;
+        parts.add(gauge);
+        return new GaugeRegistration() {
+            @Override
+            public void remove() {
+                parts.remove(gauge);
+            }
+        };
+    }
+
+    /**
+     * Gauge added by {@link #addGauge}, counted in its attribute until removed.
+     */
+    public interface GaugeRegistration {
+        void remove();
+    }
+
+    /**
+     * Timing of one call of a step.
+     */
+    public class Timer {
+
+        private final Step step;
+        private final long startNanos;
+
+        private Timer(Step step, long startNanos) {
+            this.step = step;
+            this.startNanos = startNanos;
+        }
+
+        public void stop() {
+            stop((String) null);
+        }
+
+        /**
+         * Stops the timer, counting an error if the call failed.
+         */
+        public void stop(Throwable failure) {
+            stop(failure == null ? null : Utils.getErrorReason(failure));
+        }
+
+        /**
+         * Stops the timer, counting an error with the given reason unless it is null.
+         */
+        public void stop(String failureReason) {
+            StepStats stats = stepStats[step.ordinal()];
+            stats.inFlight.decrementAndGet();
+            stats.latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+            if (failureReason != null) {
+                stats.countError(failureReason);
+            }
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Object value = snapshot().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read only");
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        SortedMap<String, Object> snapshot = snapshot();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Object value = snapshot.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        //Error reasons and gauges come and go, so the attributes are whatever the current snapshot holds
+        List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for (Map.Entry<String, Object> entry : snapshot().entrySet()) {
+            attributes.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                    entry.getKey(), true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "GCE connector metrics",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null,
+                new MBeanOperationInfo[0], null);
+    }
+
+    private SortedMap<String, Object> snapshot() {
+        SortedMap<String, Object> snapshot = new TreeMap<String, Object>();
+        for (Step step : Step.values()) {
+            StepStats stats = stepStats[step.ordinal()];
+            String prefix = step.attributePrefix;
+            snapshot.put(prefix + "Count", stats.latency.getCount());
+            snapshot.put(prefix + "InFlight", stats.inFlight.get());
+            snapshot.put(prefix + "P50Millis", stats.latency.getPercentile(0.5) / 1000.0);
+            snapshot.put(prefix + "P99Millis", stats.latency.getPercentile(0.99) / 1000.0);
+            snapshot.put(prefix + "MaxMillis", stats.latency.getMax() / 1000.0);
+
+            long errors = 0;
+            for (Map.Entry<String, AtomicLong> entry : stats.errorsByReason.entrySet()) {
+                long count = entry.getValue().get();
+                snapshot.put(prefix + "Errors." + entry.getKey(), count);
+                errors += count;
+            }
+            snapshot.put(prefix + "Errors", errors);
+        }
+
+        snapshot.put("OperationsPolled", pollsPerOperation.getCount());
+        snapshot.put("PollsPerOperationP50", pollsPerOperation.getPercentile(0.5));
+        snapshot.put("PollsPerOperationP99", pollsPerOperation.getPercentile(0.99));
+        snapshot.put("PollsPerOperationMax", pollsPerOperation.getMax());
+
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            try {
+                Number value = entry.getValue().getValue();
+                if (value != null) {
+                    snapshot.put(entry.getKey(), value);
+                }
+            } catch (RuntimeException e) {
+                LOG.log(Level.FINE, "Unable to read gauge " + entry.getKey(), e);
+            }
+        }
+        return snapshot;
+    }
+
+    private void registerSharedGauges() {
+        registerGauge("HttpConnectionsInPool", new Gauge() {
+            @Override
+            public Number getValue() {
+                return SharedTransport.getInstance().getConnectionsInPool();
+            }
+        });
+        registerGauge("OperationsPending", new Gauge() {
+            @Override
+            public Number getValue() {
+                return OperationPoller.getInstance().getPendingOperationCount();
+            }
+        });
+        registerGauge("SchedulerQueueDepth", new Gauge() {
+            @Override
+            public Number getValue() {
+                return RequestScheduler.getInstance().getQueueDepth();
+            }
+        });
+        registerGauge("SchedulerDispatched", new Gauge() {
+            @Override
+            public Number getValue() {
+                return RequestScheduler.getInstance().getDispatchedCount();
+            }
+        });
+        registerGauge("SchedulerThrottled", new Gauge() {
+            @Override
+            public Number getValue() {
+                return RequestScheduler.getInstance().getThrottledCount();
+            }
+        });
+        registerGauge("SchedulerRateLimited", new Gauge() {
+            @Override
+            public Number getValue() {
+                return RequestScheduler.getInstance().getRateLimitedCount();
+            }
+        });
+        registerGauge("SchedulerRetries", new Gauge() {
+            @Override
+            public Number getValue() {
+                return RequestScheduler.getInstance().getRetryCount();
+            }
+        });
+        registerGauge("ClientRegistryHits", new Gauge() {
+            @Override
+            public Number getValue() {
+                return ConnectorLocator.getInstance().getClientRegistry().getHitCount();
+            }
+        });
+        registerGauge("ClientRegistryMisses", new Gauge() {
+            @Override
+            public Number getValue() {
+                return ConnectorLocator.getInstance().getClientRegistry().getMissCount();
+            }
+        });
+        registerGauge("ClientRegistrySize", new Gauge() {
+            @Override
+            public Number getValue() {
+                return ConnectorLocator.getInstance().getClientRegistry().size();
+            }
+        });
+        registerGauge("WarmDisksReady", new Gauge() {
+            @Override
+            public Number getValue() {
+                return WarmDiskPool.getInstance().getReadyCount();
+            }
+        });
+        registerGauge("WarmDisksCreating", new Gauge() {
+            @Override
+            public Number getValue() {
+                return WarmDiskPool.getInstance().getCreatingCount();
+            }
+        });
+        registerGauge("OperationsJournaled", new Gauge() {
+            @Override
+            public Number getValue() {
+                return OperationJournal.getInstance().getLiveCount();
+            }
+        });
+    }
+
+    private void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            try {
+                server.registerMBean(this, name);
+            } catch (InstanceAlreadyExistsException e) {
+                //Left behind by a previous load of the connector
+                server.unregisterMBean(name);
+                server.registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            LOG.log(Level.WARNING, "Unable to register the connector metrics MBean", e);
+        } catch (SecurityException e) {
+            LOG.log(Level.WARNING, "Unable to register the connector metrics MBean", e);
+        }
+    }
+
+    private static class SummedGauge implements Gauge {
+
+        private final List<Gauge> parts = new CopyOnWriteArrayList<Gauge>();
+
+        @Override
+        public Number getValue() {
+            long sum = 0;
+            for (Gauge part : parts) {
+                Number value = part.getValue();
+                if (value != null) {
+                    sum += value.longValue();
+                }
+            }
+            return sum;
+        }
+    }
+
+    private static class StepStats {
+
+        private final Histogram latency = new Histogram();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final ConcurrentMap<String, AtomicLong> errorsByReason = new ConcurrentHashMap<String, AtomicLong>();
+
+        private void countError(String reason) {
+            AtomicLong count = errorsByReason.get(reason);
+            if (count == null) {
+                AtomicLong newCount = new AtomicLong();
+                count = errorsByReason.putIfAbsent(reason, newCount);
+                if (count == null) {
+                    count = newCount;
+                }
+            }
+            count.incrementAndGet();
+        }
+    }
+
+    /**
+     * Lock free histogram with four buckets per power of two, so a reported percentile is within 19% of the
+     * recorded value.
+     */
+    private static class Histogram {
+
+        private static final int BUCKETS_PER_DOUBLING = 4;
+        private static final int BUCKET_COUNT = 160;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        private void record(long value) {
+            buckets.incrementAndGet(bucketOf(value));
+            count.incrementAndGet();
+            long currentMax;
+            while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+                //Retry until the max is at least this value
+            }
+        }
+
+        private long getCount() {
+            return count.get();
+        }
+
+        private long getMax() {
+            return max.get();
+        }
+
+        /**
+         * Upper bound of the bucket holding the given quantile, capped by the largest value recorded.
+         */
+        private long getPercentile(double quantile) {
+            long total = count.get();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        private static int bucketOf(long value) {
+            if (value <= 1) {
+                return 0;
+            }
+            int bucket = (int) Math.ceil(Math.log(value) / Math.log(2) * BUCKETS_PER_DOUBLING);
+            return Math.min(bucket, BUCKET_COUNT - 1);
+        }
+
+        private static long upperBound(int bucket) {
+            return (long) Math.ceil(Math.pow(2, bucket / (double) BUCKETS_PER_DOUBLING));
+        }
+    }
+}
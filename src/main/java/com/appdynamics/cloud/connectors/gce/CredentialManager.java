@@ -0,0 +1,232 @@
+package com.appdynamics.cloud.connectors.gce;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.util.SecurityUtils;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the OAuth credential of each service account, refreshing its token ahead of expiry.
+ */
+public class CredentialManager {
+
+    public static final String REFRESH_AHEAD_SECONDS_PROPERTY_KEY = "gce.connector.token.refresh.ahead.seconds";
+    public static final String CHECK_INTERVAL_SECONDS_PROPERTY_KEY = "gce.connector.credential.check.seconds";
+
+    private static final int DEFAULT_REFRESH_AHEAD_SECONDS = 300;
+    private static final int DEFAULT_CHECK_INTERVAL_SECONDS = 60;
+
+    private static final String P12_PASSWORD = "notasecret";
+    private static final String P12_ALIAS = "privatekey";
+
+    private static final Logger LOG = Logger.getLogger(CredentialManager.class.getName());
+
+    private static final CredentialManager INSTANCE = new CredentialManager();
+
+    private final ConcurrentMap<ServiceAccountKey, SettableFuture<ManagedCredential>> credentials =
+            new ConcurrentHashMap<ServiceAccountKey, SettableFuture<ManagedCredential>>();
+
+    private final long refreshAheadSeconds;
+
+    /**
+     * Private constructor on singleton.
+     */
+    private CredentialManager() {
+        refreshAheadSeconds = Integer.getInteger(REFRESH_AHEAD_SECONDS_PROPERTY_KEY, DEFAULT_REFRESH_AHEAD_SECONDS);
+
+        long checkIntervalSeconds = Integer.getInteger(CHECK_INTERVAL_SECONDS_PROPERTY_KEY, DEFAULT_CHECK_INTERVAL_SECONDS);
+        ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("gce-credential-refresher-%d").build());
+        executorService.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                maintainAll();
+            }
+        }, checkIntervalSeconds, checkIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public static CredentialManager getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the request initializer authenticating as the service account, loading the key and fetching the
+     * first access token if the account is not managed yet.
+     */
+    public HttpRequestInitializer getCredential(ServiceAccountKey key) throws GeneralSecurityException, IOException {
+        SettableFuture<ManagedCredential> credential = credentials.get(key);
+        if (credential == null) {
+            SettableFuture<ManagedCredential> newCredential = SettableFuture.create();
+            credential = credentials.putIfAbsent(key, newCredential);
+            if (credential == null) {
+                build(key, newCredential);
+                credential = newCredential;
+            }
+        }
+        return await(credential);
+    }
+
+    /**
+     * Stops refreshing the credential of the service account.
+     */
+    public void release(ServiceAccountKey key) {
+        credentials.remove(key);
+    }
+
+    private void build(ServiceAccountKey key, SettableFuture<ManagedCredential> credential) {
+        try {
+            credential.set(new ManagedCredential(key));
+        } catch (GeneralSecurityException e) {
+            //Do not cache the failure, the next caller loads the key again
+            credentials.remove(key, credential);
+            credential.setException(e);
+        } catch (IOException e) {
+            credentials.remove(key, credential);
+            credential.setException(e);
+        } catch (RuntimeException e) {
+            credentials.remove(key, credential);
+            credential.setException(e);
+        } catch (Error e) {
+            credentials.remove(key, credential);
+            credential.setException(e);
+            throw e;
+        }
+    }
+
+    private static ManagedCredential await(SettableFuture<ManagedCredential> credential)
+            throws GeneralSecurityException, IOException {
+        try {
+            return credential.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the credential", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    private void maintainAll() {
+        for (SettableFuture<ManagedCredential> future : credentials.values()) {
+            if (!future.isDone()) {
+                //Still being built
+                continue;
+            }
+            ManagedCredential credential;
+            try {
+                credential = future.get();
+            } catch (Exception e) {
+                //Failed builds are not kept
+                continue;
+            }
+            try {
+                credential.maintain();
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "Unable to refresh the credential of " + credential.key, e);
+            }
+        }
+    }
+
+    private class ManagedCredential implements HttpRequestInitializer {
+
+        private final ServiceAccountKey key;
+        private final File keyFile;
+
+        private volatile GoogleCredential credential;
+
+        private long keyFileModified;
+        private long keyFileLength;
+        private HashCode keyFingerprint;
+        private PrivateKey privateKey;
+
+        private ManagedCredential(ServiceAccountKey key) throws GeneralSecurityException, IOException {
+            this.key = key;
+            this.keyFile = new File(key.getServiceAccountP12FilePath());
+            loadKey(Files.toByteArray(keyFile));
+            credential = newCredential();
+        }
+
+        @Override
+        public void initialize(HttpRequest request) throws IOException {
+            credential.initialize(request);
+        }
+
+        private synchronized void maintain() throws GeneralSecurityException, IOException {
+            if (keyFile.lastModified() != keyFileModified || keyFile.length() != keyFileLength) {
+                byte[] content = Files.toByteArray(keyFile);
+                if (!Hashing.sha1().hashBytes(content).equals(keyFingerprint)) {
+                    LOG.log(Level.INFO, "Key file of " + key + " changed, rebuilding its credential");
+                    loadKey(content);
+                    credential = newCredential();
+                    return;
+                }
+                keyFileModified = keyFile.lastModified();
+                keyFileLength = keyFile.length();
+            }
+
+            Long expiresInSeconds = credential.getExpiresInSeconds();
+            if (credential.getAccessToken() == null || expiresInSeconds == null || expiresInSeconds <= refreshAheadSeconds) {
+                GoogleCredential refreshed = newCredential();
+                if (refreshed.getAccessToken() != null) {
+                    credential = refreshed;
+                }
+            }
+        }
+
+        private void loadKey(byte[] content) throws GeneralSecurityException, IOException {
+            privateKey = SecurityUtils.loadPrivateKeyFromKeyStore(SecurityUtils.getPkcs12KeyStore(),
+                    new ByteArrayInputStream(content), P12_PASSWORD, P12_ALIAS, P12_PASSWORD);
+            keyFingerprint = Hashing.sha1().hashBytes(content);
+            keyFileModified = keyFile.lastModified();
+            keyFileLength = keyFile.length();
+        }
+
+        /**
+         * Builds a credential and fetches its token; requests keep using the current credential meanwhile.
+         * Fails if the token endpoint cannot be reached or refuses the key.
+         */
+        private GoogleCredential newCredential() throws GeneralSecurityException, IOException {
+            SharedTransport sharedTransport = SharedTransport.getInstance();
+            GoogleCredential newCredential = new GoogleCredential.Builder().setTransport(sharedTransport.getTransport())
+                    .setJsonFactory(sharedTransport.getJsonFactory())
+                    .setServiceAccountId(key.getServiceAccountId())
+                    .setServiceAccountScopes(Collections.singleton(ConnectorLocator.SCOPE_COMPUTE))
+                    .setServiceAccountPrivateKey(privateKey)
+                    .build();
+            //A failure reaches the caller, so a credential which cannot get a token is not cached
+            newCredential.refreshToken();
+            return newCredential;
+        }
+    }
+}
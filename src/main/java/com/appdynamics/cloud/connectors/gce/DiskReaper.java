@@ -0,0 +1,270 @@
+package com.appdynamics.cloud.connectors.gce;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.compute.Compute;
+import com.google.api.services.compute.ComputeRequest;
+import com.google.api.services.compute.model.Disk;
+import com.google.api.services.compute.model.Operation;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Deletes boot disks in the background once their instance is gone, and sweeps zones for orphaned ones.
+ */
+public class DiskReaper {
+
+    public static final String MAX_ATTEMPTS_PROPERTY_KEY = "gce.connector.reaper.max.attempts";
+    public static final String INITIAL_BACKOFF_SECONDS_PROPERTY_KEY = "gce.connector.reaper.initial.backoff.seconds";
+    public static final String MAX_BACKOFF_SECONDS_PROPERTY_KEY = "gce.connector.reaper.max.backoff.seconds";
+    public static final String ORPHAN_MIN_AGE_MINUTES_PROPERTY_KEY = "gce.connector.reaper.orphan.min.age.minutes";
+
+    /**
+     * Description put on every boot disk the connector creates; the orphan sweep only considers disks carrying it.
+     */
+    public static final String BOOT_DISK_DESCRIPTION = "Boot disk created by " + ConnectorLocator.APPLICATION_NAME;
+
+    private static final int DEFAULT_MAX_ATTEMPTS = 8;
+    private static final int DEFAULT_INITIAL_BACKOFF_SECONDS = 5;
+    private static final int DEFAULT_MAX_BACKOFF_SECONDS = 300;
+    private static final int DEFAULT_ORPHAN_MIN_AGE_MINUTES = 30;
+
+    private static final long PAGE_SIZE = 500L;
+
+    private static final Logger LOG = Logger.getLogger(DiskReaper.class.getName());
+
+    private final ScheduledExecutorService executorService;
+
+    private final WarmDiskPool warmDiskPool;
+
+    private final Set<ZoneKey> sweptZones = Collections.newSetFromMap(new ConcurrentHashMap<ZoneKey, Boolean>());
+    private final AtomicInteger pendingDeletions = new AtomicInteger();
+    private final Random random = new Random();
+
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final long orphanMinAgeMillis;
+
+    public DiskReaper(WarmDiskPool warmDiskPool) {
+        this.warmDiskPool = warmDiskPool;
+        executorService = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("gce-disk-reaper-%d").build());
+        maxAttempts = Integer.getInteger(MAX_ATTEMPTS_PROPERTY_KEY, DEFAULT_MAX_ATTEMPTS);
+        initialBackoffMillis = TimeUnit.SECONDS.toMillis(
+                Integer.getInteger(INITIAL_BACKOFF_SECONDS_PROPERTY_KEY, DEFAULT_INITIAL_BACKOFF_SECONDS));
+        maxBackoffMillis = TimeUnit.SECONDS.toMillis(
+                Integer.getInteger(MAX_BACKOFF_SECONDS_PROPERTY_KEY, DEFAULT_MAX_BACKOFF_SECONDS));
+        orphanMinAgeMillis = TimeUnit.MINUTES.toMillis(
+                Integer.getInteger(ORPHAN_MIN_AGE_MINUTES_PROPERTY_KEY, DEFAULT_ORPHAN_MIN_AGE_MINUTES));
+    }
+
+    /**
+     * Deletes the boot disk once the operation holding it, usually the instance delete, has finished. The journal
+     * entry, if any, is ended once the disk is gone or given up on.
+     */
+    public void reapAfter(final Compute connector, final String projectId, final String zone, Operation operation,
+                          final String diskName, final OperationJournal.Entry entry) {
+        pendingDeletions.incrementAndGet();
+        Futures.addCallback(OperationPoller.getInstance().watch(connector, projectId, zone, operation),
+                new FutureCallback<Operation>() {
+                    @Override
+                    public void onSuccess(Operation operation) {
+                        scheduleDiskDeletion(new DiskDeletion(connector, projectId, zone, diskName, false, entry), 0);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        //The disk delete is refused while the instance still holds it, and is retried until then
+                        LOG.log(Level.WARNING, "Operation holding boot disk " + diskName + " did not complete", t);
+                        scheduleDiskDeletion(new DiskDeletion(connector, projectId, zone, diskName, false, entry),
+                                initialBackoffMillis);
+                    }
+                }, MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * Deletes the boot disk now, retrying while GCE refuses. The journal entry, if any, is ended once the disk is
+     * gone or given up on.
+     */
+    public void reap(Compute connector, String projectId, String zone, String diskName, OperationJournal.Entry entry) {
+        pendingDeletions.incrementAndGet();
+        scheduleDiskDeletion(new DiskDeletion(connector, projectId, zone, diskName, false, entry), 0);
+    }
+
+    /**
+     * Sweeps the zone for orphaned boot disks, once per zone for the life of the connector.
+     */
+    public void sweepOnce(final Compute connector, final String projectId, final String zone) {
+        if (!sweptZones.add(new ZoneKey(projectId, zone))) {
+            return;
+        }
+        Futures.addCallback(sweep(connector, projectId, zone), new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                LOG.log(Level.WARNING, "Unable to sweep " + projectId + "/" + zone + " for orphaned boot disks", t);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * Number of boot disks waiting to be deleted.
+     */
+    public int getPendingDeletionCount() {
+        return pendingDeletions.get();
+    }
+
+    private ListenableFuture<Void> sweep(final Compute connector, final String projectId, final String zone) {
+        final long cutoff = System.currentTimeMillis() - orphanMinAgeMillis;
+        RequestShaper.ItemHandler<Disk> handler = new RequestShaper.ItemHandler<Disk>() {
+            @Override
+            public void handle(Disk disk) {
+                if (isSweepable(disk) && isOlderThan(disk, cutoff)) {
+                    pendingDeletions.incrementAndGet();
+                    scheduleDiskDeletion(new DiskDeletion(connector, projectId, zone, disk.getName(), true, null), 0);
+                }
+            }
+        };
+        RequestScheduler.PageRequestFactory pages = new RequestScheduler.PageRequestFactory() {
+            @Override
+            public ComputeRequest<?> create(String pageToken) throws IOException {
+                Compute.Disks.List list = connector.disks().list(projectId, zone);
+                list.setMaxResults(PAGE_SIZE);
+                list.setPageToken(pageToken);
+                return list;
+            }
+        };
+        return RequestScheduler.getInstance().submitListAll(connector, projectId, RequestScheduler.Category.READ,
+                pages, Disk.class, handler);
+    }
+
+    private boolean isSweepable(Disk disk) {
+        if (BOOT_DISK_DESCRIPTION.equals(disk.getDescription())) {
+            return true;
+        }
+        //Warm disks of a previous run, or claimed ones, which GCE refuses to delete while attached
+        return WarmDiskPool.WARM_DISK_DESCRIPTION.equals(disk.getDescription()) && !warmDiskPool.isPooled(disk.getName());
+    }
+
+    private static boolean isOlderThan(Disk disk, long cutoff) {
+        if (disk.getCreationTimestamp() == null) {
+            return false;
+        }
+        try {
+            return DateTime.parseRfc3339(disk.getCreationTimestamp()).getValue() < cutoff;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private void scheduleDiskDeletion(DiskDeletion deletion, long delayMillis) {
+        executorService.schedule(deletion, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private long backoff(int attempt) {
+        long backoff = Math.min(initialBackoffMillis << Math.min(attempt, 20), maxBackoffMillis);
+        //Jitter keeps retries of disks deleted together from arriving together
+        synchronized (random) {
+            return backoff / 2 + (long) (random.nextDouble() * backoff / 2);
+        }
+    }
+
+    private class DiskDeletion implements Runnable {
+
+        private final Compute connector;
+        private final String projectId;
+        private final String zone;
+        private final String diskName;
+        private final boolean orphan;
+        private final OperationJournal.Entry entry;
+
+        private int attempt;
+
+        private DiskDeletion(Compute connector, String projectId, String zone, String diskName, boolean orphan,
+                             OperationJournal.Entry entry) {
+            this.connector = connector;
+            this.projectId = projectId;
+            this.zone = zone;
+            this.diskName = diskName;
+            this.orphan = orphan;
+            this.entry = entry;
+        }
+
+        @Override
+        public void run() {
+            Compute.Disks.Delete delete;
+            try {
+                delete = connector.disks().delete(projectId, zone, diskName);
+            } catch (IOException e) {
+                onFailure(e);
+                return;
+            }
+
+            final ConnectorMetrics.Timer timer = ConnectorMetrics.getInstance().start(ConnectorMetrics.Step.DISK_DELETE);
+            Futures.addCallback(RequestScheduler.getInstance().submit(connector, projectId, RequestScheduler.Category.MUTATION,
+                    delete), new FutureCallback<Operation>() {
+                @Override
+                public void onSuccess(Operation operation) {
+                    timer.stop();
+                    done();
+                    if (orphan) {
+                        LOG.log(Level.INFO, "Deleted orphaned boot disk " + diskName + " in " + projectId + "/" + zone);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    timer.stop(t);
+                    DiskDeletion.this.onFailure(t);
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+
+        private void onFailure(Throwable t) {
+            if (Utils.isNotFoundError(t)) {
+                done();
+                return;
+            }
+            if (orphan) {
+                //Still attached to an instance, so not an orphan after all
+                done();
+                LOG.log(Level.FINE, "Boot disk " + diskName + " was not deleted by the orphan sweep", t);
+                return;
+            }
+
+            attempt++;
+            if (attempt >= maxAttempts) {
+                done();
+                LOG.log(Level.WARNING, "Unable to delete the boot disk! We have a boot disk with name " + diskName +
+                        " which is not used by any instance. Please remove the boot disk manually.", t);
+                return;
+            }
+            LOG.log(Level.FINE, "Unable to delete boot disk " + diskName + ", retrying", t);
+            scheduleDiskDeletion(this, backoff(attempt));
+        }
+
+        private void done() {
+            pendingDeletions.decrementAndGet();
+            if (entry != null) {
+                OperationJournal.getInstance().end(entry);
+            }
+        }
+    }
+}
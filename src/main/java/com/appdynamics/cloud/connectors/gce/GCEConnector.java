@@ -1,15 +1,14 @@
 package com.appdynamics.cloud.connectors.gce;
 
-import com.google.api.client.googleapis.json.GoogleJsonError;
-import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.services.compute.Compute;
 import com.google.api.services.compute.model.AccessConfig;
-import com.google.api.services.compute.model.AttachedDisk;
-import com.google.api.services.compute.model.Disk;
 import com.google.api.services.compute.model.Instance;
 import com.google.api.services.compute.model.NetworkInterface;
 import com.google.api.services.compute.model.Operation;
-import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.singularity.ee.agent.resolver.AgentResolutionEncoder;
 import com.singularity.ee.connectors.api.ConnectorException;
 import com.singularity.ee.connectors.api.IConnector;
@@ -25,14 +24,12 @@ import com.singularity.ee.connectors.entity.api.MachineState;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -47,21 +44,256 @@ public class GCEConnector implements IConnector {
 
     private IControllerServices controllerServices;
 
-    private static final Map<String, String> IMAGE_URL;
+    private ConfigBinder configBinder;
 
-    static {
+    private final InstanceChangeFeed instanceChangeFeed = new InstanceChangeFeed(new InstanceSnapshotCache());
 
-        HashMap<String, String> tempUrlMap = new HashMap<String, String>();
-        tempUrlMap.put("centos-6-v20131120", "https://www.googleapis.com/compute/v1/projects/centos-cloud/global/images/centos-6-v20131120");
-        tempUrlMap.put("backports-debian-7-wheezy-v20131127", "https://www.googleapis.com/compute/v1/projects/debian-cloud/global/images/backports-debian-7-wheezy-v20131127");
-        tempUrlMap.put("debian-7-wheezy-v20131120", "https://www.googleapis.com/compute/v1/projects/debian-cloud/global/images/debian-7-wheezy-v20131120");
-        IMAGE_URL = Collections.unmodifiableMap(tempUrlMap);
+    //Shared by every instance of the connector, so the boot disk sweep of one leaves the warm disks of another alone
+    private final WarmDiskPool warmDiskPool = WarmDiskPool.getInstance();
 
+    private final DiskReaper diskReaper = new DiskReaper(warmDiskPool);
+
+    private final MachineProvisioner machineProvisioner = new MachineProvisioner(diskReaper);
+
+    private final MachineRestarter machineRestarter = new MachineRestarter();
+
+    private final ImageCatalog imageCatalog = new ImageCatalog();
+
+    //Compute centers between configure and unconfigure
+    private final ConcurrentMap<IComputeCenter, ComputeCenterConfig> configuredComputeCenters =
+            new ConcurrentHashMap<IComputeCenter, ComputeCenterConfig>();
+
+    private final List<ConnectorMetrics.GaugeRegistration> gaugeRegistrations =
+            new ArrayList<ConnectorMetrics.GaugeRegistration>();
+
+    public GCEConnector() {
+        //Recovery builds clients and fetches tokens, which the controller should not wait for
+        ExecutorService recovery = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("gce-operation-recovery-%d").build());
+        recovery.execute(new Runnable() {
+            @Override
+            public void run() {
+                recoverOperations();
+            }
+        });
+        recovery.shutdown();
+    }
+
+    /**
+     * Adds the gauges of this instance to the connector metrics, summed over every instance with configured compute
+     * centers, and removes them again once the last one is unconfigured.
+     */
+    private void updateGauges() {
+        synchronized (gaugeRegistrations) {
+            if (configuredComputeCenters.isEmpty()) {
+                for (ConnectorMetrics.GaugeRegistration registration : gaugeRegistrations) {
+                    registration.remove();
+                }
+                gaugeRegistrations.clear();
+                return;
+            }
+            if (!gaugeRegistrations.isEmpty()) {
+                return;
+            }
+            ConnectorMetrics metrics = ConnectorMetrics.getInstance();
+            gaugeRegistrations.add(metrics.addGauge("ProvisioningsInFlight", new ConnectorMetrics.Gauge() {
+                @Override
+                public Number getValue() {
+                    return machineProvisioner.getInFlightCount();
+                }
+            }));
+            gaugeRegistrations.add(metrics.addGauge("RestartsInFlight", new ConnectorMetrics.Gauge() {
+                @Override
+                public Number getValue() {
+                    return machineRestarter.getInFlightCount();
+                }
+            }));
+            gaugeRegistrations.add(metrics.addGauge("DiskDeletionsPending", new ConnectorMetrics.Gauge() {
+                @Override
+                public Number getValue() {
+                    return diskReaper.getPendingDeletionCount();
+                }
+            }));
+            gaugeRegistrations.add(metrics.addGauge("InstancesTracked", new ConnectorMetrics.Gauge() {
+                @Override
+                public Number getValue() {
+                    return instanceChangeFeed.getTrackedInstanceCount();
+                }
+            }));
+            gaugeRegistrations.add(metrics.addGauge("InstanceRereads", new ConnectorMetrics.Gauge() {
+                @Override
+                public Number getValue() {
+                    return instanceChangeFeed.getRereadCount();
+                }
+            }));
+        }
+    }
+
+    /**
+     * Finishes or rolls back the operations the last run of the connector left in flight, as found in the
+     * {@link OperationJournal}.
+     */
+    private void recoverOperations() {
+        for (OperationJournal.Entry entry : OperationJournal.getInstance().recover()) {
+            LOG.log(Level.INFO, "Recovering " + entry);
+            try {
+                recoverOperation(ConnectorLocator.getInstance().getClientRegistry().get(entry.getServiceAccountKey()),
+                        entry);
+            } catch (RuntimeException e) {
+                //Left in the journal, so the next start tries again
+                LOG.log(Level.WARNING, "Unable to recover " + entry, e);
+            }
+        }
+    }
+
+    /**
+     * Finishes or rolls back one entry of the journal in the background, ending it once nothing is left to do.
+     */
+    void recoverOperation(final Compute connector, final OperationJournal.Entry entry) {
+        final String projectId = entry.getProjectId();
+        final String zone = entry.getZone();
+        Operation operation = new Operation().setName(entry.getOperationName());
+        switch (entry.getPhase()) {
+            case DISK_INSERT:
+                //The instance insert was never sent, roll back by deleting the boot disk
+                diskReaper.reapAfter(connector, projectId, zone, operation, entry.getDiskName(), entry);
+                break;
+            case INSTANCE_INSERT:
+                Futures.addCallback(OperationPoller.getInstance().watch(connector, projectId, zone, operation),
+                        new FutureCallback<Operation>() {
+                            @Override
+                            public void onSuccess(Operation operation) {
+                                if (entry.isAsynchronous()) {
+                                    //The controller knows the machine and picks it up through refreshMachineState
+                                    OperationJournal.getInstance().end(entry);
+                                } else {
+                                    //The controller never got the machine back from createMachine
+                                    deleteRecoveredInstance(connector, entry);
+                                }
+                            }
+
+                            @Override
+                            public void onFailure(Throwable t) {
+                                //The operation may have failed, or be long gone while the instance was created
+                                LOG.log(Level.WARNING, "Instance insert of " + entry + " did not complete", t);
+                                recoverUnknownInstance(connector, entry);
+                            }
+                        }, MoreExecutors.sameThreadExecutor());
+                break;
+            case INSTANCE_DELETE:
+                reapRecoveredDisk(connector, entry, operation);
+                break;
+            case DISK_DELETE:
+                //A failed create was rolling back its boot disk
+                diskReaper.reap(connector, projectId, zone, entry.getDiskName(), entry);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Rolls back an instance insert whose outcome is unknown: the instance is deleted if it exists and the
+     * controller never got it back, and the boot disk is deleted either way.
+     */
+    private void recoverUnknownInstance(final Compute connector, final OperationJournal.Entry entry) {
+        Compute.Instances.Get get;
+        try {
+            get = connector.instances().get(entry.getProjectId(), entry.getZone(), entry.getMachineName());
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Unable to roll back " + entry, e);
+            return;
+        }
+        Futures.addCallback(RequestScheduler.getInstance().submit(connector, entry.getProjectId(),
+                RequestScheduler.Category.READ, get), new FutureCallback<Instance>() {
+            @Override
+            public void onSuccess(Instance instance) {
+                if (entry.isAsynchronous()) {
+                    OperationJournal.getInstance().end(entry);
+                } else {
+                    deleteRecoveredInstance(connector, entry);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if (Utils.isNotFoundError(t)) {
+                    reapRecoveredDisk(connector, entry, new Operation().setName(entry.getOperationName())
+                            .setStatus("DONE"));
+                } else {
+                    //Left in the journal, so the next start tries again
+                    LOG.log(Level.WARNING, "Unable to roll back " + entry, t);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    private void deleteRecoveredInstance(final Compute connector, final OperationJournal.Entry entry) {
+        Compute.Instances.Delete delete;
+        try {
+            delete = connector.instances().delete(entry.getProjectId(), entry.getZone(), entry.getMachineName());
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Unable to roll back " + entry, e);
+            return;
+        }
+        Futures.addCallback(RequestScheduler.getInstance().submit(connector, entry.getProjectId(),
+                RequestScheduler.Category.MUTATION, delete), new FutureCallback<Operation>() {
+            @Override
+            public void onSuccess(Operation operation) {
+                OperationJournal.getInstance().record(entry, OperationJournal.Phase.INSTANCE_DELETE, operation.getName());
+                reapRecoveredDisk(connector, entry, operation);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if (Utils.isNotFoundError(t)) {
+                    OperationJournal.getInstance().end(entry);
+                } else {
+                    LOG.log(Level.WARNING, "Unable to roll back " + entry, t);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    private void reapRecoveredDisk(Compute connector, OperationJournal.Entry entry, Operation operation) {
+        if (entry.getDiskName() == null) {
+            //GCE deletes the boot disk together with the instance
+            OperationJournal.getInstance().end(entry);
+        } else {
+            diskReaper.reapAfter(connector, entry.getProjectId(), entry.getZone(), operation, entry.getDiskName(), entry);
+        }
+    }
+
+    /**
+     * A call of the controller, timed as one step of the connector.
+     */
+    private interface TimedCall<T> {
+        T call() throws InvalidObjectException, ConnectorException;
+    }
+
+    private static <T> T timed(ConnectorMetrics.Step step, TimedCall<T> call)
+            throws InvalidObjectException, ConnectorException {
+        ConnectorMetrics.Timer timer = ConnectorMetrics.getInstance().start(step);
+        try {
+            T result = call.call();
+            timer.stop();
+            return result;
+        } catch (InvalidObjectException e) {
+            timer.stop(e);
+            throw e;
+        } catch (ConnectorException e) {
+            timer.stop(e);
+            throw e;
+        } catch (RuntimeException e) {
+            timer.stop(e);
+            throw e;
+        }
     }
 
     @Override
     public void setControllerServices(IControllerServices iControllerServices) {
         this.controllerServices = iControllerServices;
+        this.configBinder = new ConfigBinder(iControllerServices);
     }
 
     @Override
@@ -70,55 +302,81 @@ public class GCEConnector implements IConnector {
     }
 
     @Override
-    public IMachine createMachine(IComputeCenter iComputeCenter, IImage iImage, IMachineDescriptor iMachineDescriptor) throws InvalidObjectException, ConnectorException {
+    public IMachine createMachine(final IComputeCenter iComputeCenter, final IImage iImage,
+                                  final IMachineDescriptor iMachineDescriptor) throws InvalidObjectException, ConnectorException {
+        return timed(ConnectorMetrics.Step.CREATE, new TimedCall<IMachine>() {
+            @Override
+            public IMachine call() throws InvalidObjectException, ConnectorException {
+                return doCreateMachine(iComputeCenter, iImage, iMachineDescriptor);
+            }
+        });
+    }
 
-        final Compute connector = ConnectorLocator.getInstance().getConnector(iComputeCenter.getProperties(), controllerServices);
+    private IMachine doCreateMachine(IComputeCenter iComputeCenter, IImage iImage, IMachineDescriptor iMachineDescriptor) throws InvalidObjectException, ConnectorException {
 
-        final String projectId = Utils.getProjectId(iComputeCenter.getProperties(), controllerServices);
-        final String zone = Utils.getZone(iMachineDescriptor.getProperties(), controllerServices);
-        String instanceName = Utils.getInstanceName(iMachineDescriptor.getProperties(), controllerServices);
-        String machineType = Utils.getMachineType(iImage.getProperties(), controllerServices);
-        String image = Utils.getImage(iImage.getProperties(), controllerServices);
+        final ComputeCenterConfig computeCenter = configBinder.bind(iComputeCenter);
+        final ImageConfig image = configBinder.bind(iImage);
+        final MachineDescriptorConfig machineDescriptor = configBinder.bind(iMachineDescriptor);
 
-        AgentResolutionEncoder agentResolutionEncoder = getAgentResolutionEncoder(iComputeCenter);
+        final Compute connector = ConnectorLocator.getInstance().getConnector(computeCenter);
 
-        //create the boot disk
-        Operation insertDiskExecute = createBootDisk(connector, instanceName, projectId, zone, image);
+        final String projectId = computeCenter.getProjectId();
+        final String zone = machineDescriptor.getZone();
+        String instanceName = machineDescriptor.getInstanceName();
 
-        CountDownLatch doneSignal = new CountDownLatch(1);
-        waitForOperationToComplete(connector, projectId, zone, insertDiskExecute, doneSignal);
-        try {
-            doneSignal.await();
-        } catch (InterruptedException e) {
-            LOG.log(Level.WARNING, "Waiting for disk creation interrupted", e);
+        String imageUrl = imageCatalog.resolve(connector, projectId, image.getImage());
+        if (imageUrl == null) {
+            throw new InvalidObjectException("The specified " + Utils.IMAGE_KEY_PROP + " " + image.getImage() +
+                    " does not exist.");
         }
 
-        Instance instance = populateInstance(projectId, zone, instanceName, machineType);
+        AgentResolutionEncoder agentResolutionEncoder = getAgentResolutionEncoder(iComputeCenter);
 
-        boolean instanceCreated = false;
+        //Claimed even without a warm pool size, so a pool resized to 0 is dropped
+        String warmDiskName = warmDiskPool.claim(connector, projectId, zone, imageUrl, image.getWarmPoolSize(),
+                computeCenter.getWarmDiskMaxAgeMillis());
+        ProvisioningRequest request = new ProvisioningRequest(computeCenter, image, machineDescriptor, imageUrl,
+                warmDiskName);
+        MachineProvisioner.Provisioning provisioning;
         try {
-            Compute.Instances.Insert insert = connector.instances().insert(projectId, zone, instance);
-            insert.execute();
+            provisioning = machineProvisioner.provision(connector, request);
+        } catch (ConnectorException e) {
+            if (warmDiskName != null) {
+                //Out of the pool already and not attached to anything
+                diskReaper.reap(connector, projectId, zone, warmDiskName, null);
+            }
+            throw e;
+        }
 
-            instanceCreated = true;
-            return controllerServices.createMachineInstance(instance.getName(),
+        boolean registered = false;
+        try {
+            if (computeCenter.isAsynchronousProvisioning()) {
+                //The machine is reported as STARTING and the rest of provisioning surfaces through refreshMachineState
+                IMachine machine = controllerServices.createMachineInstance(instanceName,
+                        agentResolutionEncoder.getUniqueHostIdentifier(), iComputeCenter, iMachineDescriptor, iImage,
+                        getAgentPort());
+                machine.setState(MachineState.STARTING);
+                registered = true;
+                return machine;
+            }
+
+            try {
+                OperationPoller.await(provisioning.getResult(), "instance creation");
+            } catch (ConnectorException e) {
+                handleAuthorizationFailure(computeCenter, e);
+                throw e;
+            }
+            machineProvisioner.forget(provisioning);
+
+            IMachine machine = controllerServices.createMachineInstance(instanceName,
                     agentResolutionEncoder.getUniqueHostIdentifier(), iComputeCenter, iMachineDescriptor, iImage,
                     getAgentPort());
-        } catch (IOException e) {
-            LOG.log(Level.WARNING, "Unable to create instance", e);
-            throw new ConnectorException("Unable to create instance", e);
+            registered = true;
+            return machine;
         } finally {
-            if (!instanceCreated) {
-                try {
-                    Compute.Disks.Delete delete = connector.disks().delete(projectId, zone, instanceName);
-                    delete.execute();
-                } catch (IOException e) {
-                    String message = "Machine create failed and unable to delete the boot disk! " +
-                            "We have a boot disk with name " + instanceName + " which is not used by any instance." +
-                            " Please remove the boot disk manually.";
-                    LOG.log(Level.WARNING, message, e);
-                    throw new ConnectorException(message, e);
-                }
+            if (!registered) {
+                //Nothing would ever terminate a machine the controller does not know about
+                provisioning.discard();
             }
         }
     }
@@ -141,91 +399,63 @@ public class GCEConnector implements IConnector {
                 account.getName(), "");
     }
 
-    private Instance populateInstance(String projectId, String zone, String instanceName, String machineType) {
-        Instance instance = new Instance();
-        instance.setName(instanceName);
-        instance.setMachineType("https://www.googleapis.com/compute/v1/projects/"+projectId+"/zones/"+zone+"/machineTypes/"+machineType);
-        instance.setZone(zone);
-
-        NetworkInterface networkInterface = new NetworkInterface();
-        networkInterface.setName("Default");
-        networkInterface.setNetwork("https://www.googleapis.com/compute/v1/projects/"+projectId+"/global/networks/default");
-
-        AccessConfig accessConfig = new AccessConfig();
-        accessConfig.setName("External NAT");
-        accessConfig.setType("ONE_TO_ONE_NAT");
-        
-        networkInterface.setAccessConfigs(Lists.newArrayList(accessConfig));
-        instance.setNetworkInterfaces(Lists.newArrayList(networkInterface));
-        
-        AttachedDisk attachedDisk = new AttachedDisk();
-        attachedDisk.setBoot(true);
-        attachedDisk.setType("PERSISTENT");
-        attachedDisk.setMode("READ_WRITE");
-        attachedDisk.setDeviceName(instanceName);
-        String diskURL = getDiskURL(projectId, zone, instanceName);
-        attachedDisk.setSource(diskURL);
-
-        instance.setDisks(Lists.newArrayList(attachedDisk));
-        return instance;
-    }
-
-    private void waitForOperationToComplete(final Compute connector, final String projectId, final String zone, Operation insertDiskExecute, final CountDownLatch doneSignal) {
-        final String operationName = insertDiskExecute.getName();
-        final ScheduledExecutorService executorService = Executors.newScheduledThreadPool(1);
-        executorService.scheduleAtFixedRate(new Runnable() {
+    @Override
+    public void refreshMachineState(final IMachine iMachine) throws InvalidObjectException, ConnectorException {
+        timed(ConnectorMetrics.Step.REFRESH, new TimedCall<Void>() {
             @Override
-            public void run() {
-                try {
-                    Compute.ZoneOperations.Get get = connector.zoneOperations().get(projectId, zone, operationName);
-                    Operation operation = get.execute();
-                    if ("DONE".equals(operation.getStatus())) {
-                        doneSignal.countDown();
-                        executorService.shutdown();
-                    }
-                } catch (IOException e) {
-                    LOG.log(Level.WARNING, "Unable to get the operation status", e);
-                }
+            public Void call() throws InvalidObjectException, ConnectorException {
+                doRefreshMachineState(iMachine);
+                return null;
             }
-        }, 0, 5, TimeUnit.SECONDS);
+        });
     }
 
-    private Operation createBootDisk(Compute compute, String instanceName, String projectId, String zone, String image) throws ConnectorException {
+    private void doRefreshMachineState(IMachine iMachine) throws InvalidObjectException, ConnectorException {
+        ComputeCenterConfig computeCenter = configBinder.bind(iMachine.getComputeCenter());
 
-        Disk disk = new Disk();
-        disk.setName(instanceName);
-        disk.setSourceImage(IMAGE_URL.get(image));
-        Compute.Disks.Insert insertDisk = null;
-        try {
-            insertDisk = compute.disks().insert(projectId, zone, disk);
-            insertDisk.setSourceImage(IMAGE_URL.get(image));
-            return insertDisk.execute();
-        } catch (IOException e) {
-            LOG.log(Level.WARNING, "Unable to create boot disk", e);
-            throw new ConnectorException("Unable to create boot disk", e);
-        }
-    }
-
-    private String getDiskURL(String projectId, String zone, String instanceName) {
+        final String projectId = computeCenter.getProjectId();
+        final String zone = configBinder.bind(iMachine.getMachineDescriptor()).getZone();
 
-        StringBuilder sb = new StringBuilder("https://www.googleapis.com/compute/v1/projects/");
-        sb.append(projectId).append("/").append("zones/").append(zone).append("/").append("disks/").append(instanceName);
-        return sb.toString();
-    }
+        MachineProvisioner.Provisioning provisioning = machineProvisioner.getProvisioning(projectId, zone, iMachine.getName());
+        if (provisioning != null) {
+            if (!provisioning.isFinished()) {
+                iMachine.setState(MachineState.STARTING);
+                return;
+            }
+            machineProvisioner.forget(provisioning);
+            if (provisioning.getPhase() == MachineProvisioner.Phase.FAILED) {
+                handleAuthorizationFailure(computeCenter, provisioning.getFailure());
+                LOG.log(Level.WARNING, "Unable to create instance " + iMachine.getName(), provisioning.getFailure());
+                iMachine.setState(MachineState.STOPPED);
+                return;
+            }
+        }
 
-    @Override
-    public void refreshMachineState(IMachine iMachine) throws InvalidObjectException, ConnectorException {
-        IComputeCenter computeCenter = iMachine.getComputeCenter();
-        IMachineDescriptor machineDescriptor = iMachine.getMachineDescriptor();
-        final Compute connector = ConnectorLocator.getInstance().getConnector(computeCenter.getProperties(), controllerServices);
+        MachineRestarter.Restart restart = machineRestarter.getRestart(projectId, zone, iMachine.getName());
+        if (restart != null && !restart.isFinished()) {
+            iMachine.setState(MachineState.STARTING);
+            return;
+        }
+        //Once reset, read below like any starting machine, which also picks up the address it came back with
 
-        final String projectId = Utils.getProjectId(computeCenter.getProperties(), controllerServices);
-        final String zone = Utils.getZone(machineDescriptor.getProperties(), controllerServices);
+        final Compute connector = ConnectorLocator.getInstance().getConnector(computeCenter);
+        diskReaper.sweepOnce(connector, projectId, zone);
 
         MachineState currentState = iMachine.getState();
         try {
-            Compute.Instances.Get get = connector.instances().get(projectId, zone, iMachine.getName());
-            Instance instance = get.execute();
+            Instance instance = null;
+            if (currentState != MachineState.STARTING) {
+                instance = instanceChangeFeed.getInstance(connector, projectId, zone, iMachine.getName());
+            }
+            if (instance == null) {
+                //A starting instance goes to RUNNING without a new operation, and one the feed has not seen may
+                //just have been created, so ask for it directly
+                Compute.Instances.Get get = connector.instances().get(projectId, zone, iMachine.getName());
+                instance = RequestScheduler.getInstance().execute(connector, projectId, RequestScheduler.Category.READ, get);
+                if (instance != null) {
+                    instanceChangeFeed.put(projectId, zone, instance);
+                }
+            }
             if (instance == null) {
                 if (currentState != MachineState.STOPPED) {
                     iMachine.setState(MachineState.STOPPED);
@@ -249,13 +479,10 @@ public class GCEConnector implements IConnector {
             }
         } catch (IOException e) {
             //If the machine instance is not found, set the state as STOPPED
-            if(e instanceof GoogleJsonResponseException) {
-                GoogleJsonResponseException googleJsonResponseException = (GoogleJsonResponseException) e;
-                List<GoogleJsonError.ErrorInfo> errors = googleJsonResponseException.getDetails().getErrors();
-                if("notFound".equals(errors.get(0).getReason())) {
-                    iMachine.setState(MachineState.STOPPED); 
-                }
+            if (Utils.isNotFoundError(e)) {
+                iMachine.setState(MachineState.STOPPED);
             }
+            handleAuthorizationFailure(computeCenter, e);
             
             LOG.log(Level.WARNING, "Error in refresh instance", e);
         }
@@ -264,41 +491,115 @@ public class GCEConnector implements IConnector {
 
 
     @Override
-    public void terminateMachine(IMachine iMachine) throws InvalidObjectException, ConnectorException {
-        IComputeCenter computeCenter = iMachine.getComputeCenter();
-        IMachineDescriptor machineDescriptor = iMachine.getMachineDescriptor();
-        final Compute connector = ConnectorLocator.getInstance().getConnector(computeCenter.getProperties(), controllerServices);
+    public void terminateMachine(final IMachine iMachine) throws InvalidObjectException, ConnectorException {
+        timed(ConnectorMetrics.Step.TERMINATE, new TimedCall<Void>() {
+            @Override
+            public Void call() throws InvalidObjectException, ConnectorException {
+                doTerminateMachine(iMachine);
+                return null;
+            }
+        });
+    }
+
+    private void doTerminateMachine(IMachine iMachine) throws InvalidObjectException, ConnectorException {
+        ComputeCenterConfig computeCenter = configBinder.bind(iMachine.getComputeCenter());
+        final String projectId = computeCenter.getProjectId();
+        final String zone = configBinder.bind(iMachine.getMachineDescriptor()).getZone();
+
+        MachineProvisioner.Provisioning provisioning = machineProvisioner.getProvisioning(projectId, zone, iMachine.getName());
+        if (provisioning != null) {
+            machineProvisioner.forget(provisioning);
+            if (provisioning.cancel()) {
+                //The instance was never inserted, provisioning rolls back the boot disk
+                iMachine.setState(MachineState.STOPPED);
+                return;
+            }
+            //The instance insert is in flight and a delete sent now could miss the instance, so let it land first
+            try {
+                OperationPoller.await(provisioning.getResult(), "instance creation");
+            } catch (ConnectorException e) {
+                //Provisioning rolled back what it created; the delete below still covers an instance that exists
+            }
+        }
 
-        final String projectId = Utils.getProjectId(computeCenter.getProperties(), controllerServices);
-        final String zone = Utils.getZone(machineDescriptor.getProperties(), controllerServices);
+        MachineRestarter.Restart restart = machineRestarter.getRestart(projectId, zone, iMachine.getName());
+        if (restart != null) {
+            machineRestarter.forget(restart);
+        }
+
+        final Compute connector = ConnectorLocator.getInstance().getConnector(computeCenter);
+
+        diskReaper.sweepOnce(connector, projectId, zone);
 
         try {
-            //Delete instance
+            //Delete instance, the boot disk is deleted in the background once the instance is gone
             Compute.Instances.Delete deleteInstance = connector.instances().delete(projectId, zone, iMachine.getName());
-            Operation deleteOperation = deleteInstance.execute();
+            Operation deleteOperation = RequestScheduler.getInstance().execute(connector, projectId,
+                    RequestScheduler.Category.MUTATION, deleteInstance);
             iMachine.setState(MachineState.STOPPED);
 
-            CountDownLatch doneSignal = new CountDownLatch(1);
-            waitForOperationToComplete(connector, projectId, zone, deleteOperation, doneSignal);
-            try {
-                doneSignal.await();
-            } catch (InterruptedException e) {
-                LOG.log(Level.WARNING, "Waiting for instance deletion interrupted", e);
-            }
-
-            //Delete boot disk
-            Compute.Disks.Delete deleteDisk = connector.disks().delete(projectId, zone, iMachine.getName());
-            deleteDisk.execute();
+            OperationJournal.Entry entry = OperationJournal.getInstance().begin(computeCenter.getServiceAccountKey(),
+                    projectId, zone, iMachine.getName(), iMachine.getName(), false);
+            OperationJournal.getInstance().record(entry, OperationJournal.Phase.INSTANCE_DELETE,
+                    deleteOperation.getName());
+            diskReaper.reapAfter(connector, projectId, zone, deleteOperation, iMachine.getName(), entry);
         } catch (IOException e) {
+            if (provisioning != null && Utils.isNotFoundError(e)) {
+                //The create failed and left no instance behind
+                iMachine.setState(MachineState.STOPPED);
+                return;
+            }
+            handleAuthorizationFailure(computeCenter, e);
             LOG.log(Level.WARNING, "Unable to terminate the instance", e);
             throw new ConnectorException("Unable to terminate the instance", e);
 
         }
     }
 
+    /**
+     * A 401/403 on a real call means the cached credential validation is stale, so force it to be redone.
+     */
+    private void handleAuthorizationFailure(ComputeCenterConfig computeCenter, Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (Utils.isAuthorizationError(cause)) {
+                ConnectorLocator.getInstance().invalidateValidation(computeCenter);
+                return;
+            }
+        }
+    }
+
     @Override
-    public void restartMachine(IMachine iMachine) throws InvalidObjectException, ConnectorException {
-        //Stopping is not supported by GCE, Only terminate/delete is supported.
+    public void restartMachine(final IMachine iMachine) throws InvalidObjectException, ConnectorException {
+        timed(ConnectorMetrics.Step.RESTART, new TimedCall<Void>() {
+            @Override
+            public Void call() throws InvalidObjectException, ConnectorException {
+                doRestartMachine(iMachine);
+                return null;
+            }
+        });
+    }
+
+    private void doRestartMachine(IMachine iMachine) throws InvalidObjectException, ConnectorException {
+        ComputeCenterConfig computeCenter = configBinder.bind(iMachine.getComputeCenter());
+        final String projectId = computeCenter.getProjectId();
+        final String zone = configBinder.bind(iMachine.getMachineDescriptor()).getZone();
+
+        MachineProvisioner.Provisioning provisioning = machineProvisioner.getProvisioning(projectId, zone, iMachine.getName());
+        if (provisioning != null && !provisioning.isFinished()) {
+            throw new ConnectorException("Instance " + iMachine.getName() + " is still being provisioned");
+        }
+
+        final Compute connector = ConnectorLocator.getInstance().getConnector(computeCenter);
+
+        try {
+            //Reset in place, the instance keeps its boot disk and comes back through refreshMachineState
+            machineRestarter.restart(connector, projectId, zone, iMachine.getName());
+            iMachine.setState(MachineState.STARTING);
+        } catch (IOException e) {
+            handleAuthorizationFailure(computeCenter, e);
+            LOG.log(Level.WARNING, "Unable to reset the instance", e);
+            throw new ConnectorException("Unable to reset the instance", e);
+        }
     }
 
     @Override
@@ -308,23 +609,66 @@ public class GCEConnector implements IConnector {
 
     @Override
     public void refreshImageState(IImage iImage) throws InvalidObjectException, ConnectorException {
-
+        validateImage(iImage);
     }
 
     @Override
     public void validate(IComputeCenter iComputeCenter) throws InvalidObjectException, ConnectorException {
 
-        ConnectorLocator.getInstance().getConnector(iComputeCenter.getProperties(), controllerServices);
+        ConnectorLocator.getInstance().getConnector(configBinder.bind(iComputeCenter));
     }
 
+    /**
+     * Does the work the first createMachine of the compute center would otherwise pay for: loads the key, builds
+     * the client, fetches a token, validates the credentials and lists the images, which are then kept refreshed
+     * in the background.
+     */
     @Override
     public void configure(IComputeCenter iComputeCenter) throws InvalidObjectException, ConnectorException {
-
+        ComputeCenterConfig computeCenter = configBinder.bind(iComputeCenter);
+        Compute connector = ConnectorLocator.getInstance().getConnector(computeCenter);
+        imageCatalog.preload(connector, computeCenter.getProjectId());
+        configuredComputeCenters.put(iComputeCenter, computeCenter);
+        updateGauges();
     }
 
+    /**
+     * Releases what the connector holds for the compute center: the warm disks, snapshots and images of its
+     * project and the client and credential of its service account, unless another configured compute center
+     * still uses them.
+     */
     @Override
     public void unconfigure(IComputeCenter iComputeCenter) throws InvalidObjectException, ConnectorException {
+        ComputeCenterConfig computeCenter = configuredComputeCenters.remove(iComputeCenter);
+        updateGauges();
+        if (computeCenter == null) {
+            try {
+                computeCenter = configBinder.bind(iComputeCenter);
+            } catch (InvalidObjectException e) {
+                //Never usable, so nothing was built for it
+                return;
+            }
+        }
+        configBinder.unbind(iComputeCenter);
+
+        boolean projectInUse = false;
+        boolean serviceAccountInUse = false;
+        for (ComputeCenterConfig other : configuredComputeCenters.values()) {
+            projectInUse |= other.getProjectId().equals(computeCenter.getProjectId());
+            serviceAccountInUse |= other.getServiceAccountKey().equals(computeCenter.getServiceAccountKey());
+        }
 
+        if (!projectInUse) {
+            warmDiskPool.releaseProject(computeCenter.getProjectId());
+            instanceChangeFeed.forget(computeCenter.getProjectId());
+            imageCatalog.forgetProject(computeCenter.getProjectId());
+        }
+        if (!serviceAccountInUse) {
+            Compute connector = ConnectorLocator.getInstance().release(computeCenter);
+            if (connector != null) {
+                imageCatalog.forgetConnector(connector);
+            }
+        }
     }
 
     @Override
@@ -344,16 +688,54 @@ public class GCEConnector implements IConnector {
 
     @Override
     public void validate(IImage iImage) throws InvalidObjectException, ConnectorException {
+        validateImage(iImage);
+    }
 
+    /**
+     * Checks the image against the image catalog. An image carries no credentials of its own, so this relies on
+     * what the catalog has already listed for the compute centers and accepts the image while it is still empty.
+     */
+    private void validateImage(IImage iImage) throws InvalidObjectException {
+        String image = configBinder.bind(iImage).getImage();
+        if (imageCatalog.isLoaded() && imageCatalog.lookup(null, image) == null) {
+            throw new InvalidObjectException("The specified " + Utils.IMAGE_KEY_PROP + " " + image + " does not exist.");
+        }
     }
 
+    /**
+     * Resolves the image against every configured compute center, so creating a machine finds it in the catalog,
+     * and resizes its warm pools to the configured size.
+     */
     @Override
     public void configure(IImage iImage) throws InvalidObjectException, ConnectorException {
-
+        ImageConfig image = configBinder.bind(iImage);
+        for (ComputeCenterConfig computeCenter : configuredComputeCenters.values()) {
+            String imageUrl = imageCatalog.resolve(ConnectorLocator.getInstance().getConnector(computeCenter),
+                    computeCenter.getProjectId(), image.getImage());
+            if (imageUrl != null) {
+                warmDiskPool.resizeImage(imageUrl, image.getWarmPoolSize());
+            }
+        }
+        validateImage(iImage);
     }
 
+    /**
+     * Deletes the warm disks kept for the image.
+     */
     @Override
     public void unconfigure(IImage iImage) throws InvalidObjectException, ConnectorException {
-
+        ImageConfig image;
+        try {
+            image = configBinder.bind(iImage);
+        } catch (InvalidObjectException e) {
+            //Never usable, so no warm disks were made for it
+            return;
+        } finally {
+            configBinder.unbind(iImage);
+        }
+        String imageUrl = imageCatalog.lookup(null, image.getImage());
+        if (imageUrl != null) {
+            warmDiskPool.releaseImage(imageUrl);
+        }
     }
 }
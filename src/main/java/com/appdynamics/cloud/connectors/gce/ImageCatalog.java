@@ -0,0 +1,299 @@
+package com.appdynamics.cloud.connectors.gce;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.compute.Compute;
+import com.google.api.services.compute.model.Image;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory index of the images of the public image projects and the compute center projects, refreshed in
+ * the background.
+ */
+public class ImageCatalog {
+
+    public static final String IMAGE_PROJECTS_PROPERTY_KEY = "gce.connector.image.projects";
+    public static final String REFRESH_SECONDS_PROPERTY_KEY = "gce.connector.image.catalog.refresh.seconds";
+    public static final String RETRY_SECONDS_PROPERTY_KEY = "gce.connector.image.catalog.retry.seconds";
+
+    private static final String DEFAULT_IMAGE_PROJECTS =
+            "centos-cloud,debian-cloud,rhel-cloud,suse-cloud,opensuse-cloud,coreos-cloud";
+    private static final int DEFAULT_REFRESH_SECONDS = 3600;
+    private static final int DEFAULT_RETRY_SECONDS = 10;
+
+    private static final String IMAGE_URL_PREFIX = "https://www.googleapis.com/compute/v1/projects/";
+    private static final Pattern VERSIONED_NAME = Pattern.compile("^(.+)-v\\d{8}.*$");
+    private static final long PAGE_SIZE = 500L;
+
+    private static final Logger LOG = Logger.getLogger(ImageCatalog.class.getName());
+
+    private final List<String> publicProjects = new ArrayList<String>();
+
+    private final ConcurrentMap<String, ProjectImages> projects = new ConcurrentHashMap<String, ProjectImages>();
+
+    //Client last used to list each project, reused by the background refresh
+    private final ConcurrentMap<String, Compute> refreshConnectors = new ConcurrentHashMap<String, Compute>();
+
+    //Projects listed, or tried, at least once; only the first try is made by the caller
+    private final Set<String> requested = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final long retrySeconds;
+
+    private final ScheduledExecutorService executorService;
+
+    public ImageCatalog() {
+        for (String project : System.getProperty(IMAGE_PROJECTS_PROPERTY_KEY, DEFAULT_IMAGE_PROJECTS).split(",")) {
+            if (project.trim().length() > 0) {
+                publicProjects.add(project.trim());
+            }
+        }
+
+        long refreshSeconds = Integer.getInteger(REFRESH_SECONDS_PROPERTY_KEY, DEFAULT_REFRESH_SECONDS);
+        retrySeconds = Integer.getInteger(RETRY_SECONDS_PROPERTY_KEY, DEFAULT_RETRY_SECONDS);
+        executorService = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("gce-image-catalog-%d").build());
+        executorService.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                refreshAll();
+            }
+        }, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Resolves an image name, image family, "project/name" or full image URL to the image URL, listing the
+     * public image projects, the compute center project and the named project the first time they are needed;
+     * from then on it only reads the catalog, even while a listing keeps failing.
+     * Returns null if no such image exists.
+     */
+    public String resolve(Compute connector, String projectId, String image) {
+        if (image == null || image.startsWith(IMAGE_URL_PREFIX)) {
+            return image;
+        }
+
+        preload(connector, projectId);
+        int slash = image.indexOf('/');
+        if (slash > 0) {
+            load(connector, image.substring(0, slash));
+        }
+        return lookup(projectId, image);
+    }
+
+    /**
+     * Lists the compute center project and the public image projects unless they are already in the catalog, and
+     * keeps them refreshed in the background from then on.
+     */
+    public void preload(Compute connector, String projectId) {
+        load(connector, projectId);
+        for (String publicProject : publicProjects) {
+            load(connector, publicProject);
+        }
+    }
+
+    /**
+     * Drops the images of a compute center project which is no longer configured.
+     */
+    public void forgetProject(String projectId) {
+        refreshConnectors.remove(projectId);
+        requested.remove(projectId);
+        projects.remove(projectId);
+    }
+
+    /**
+     * Stops refreshing anything through a released client. The projects stay listed and are refreshed again
+     * once another compute center uses them.
+     */
+    public void forgetConnector(Compute connector) {
+        for (Map.Entry<String, Compute> entry : refreshConnectors.entrySet()) {
+            if (entry.getValue() == connector) {
+                refreshConnectors.remove(entry.getKey(), connector);
+            }
+        }
+    }
+
+    /**
+     * Resolves the image from what is already in the catalog. With a null project every listed project is
+     * searched. Only a "project/name" image whose project is not listed yet goes to the network, through the
+     * client of the compute center project or of any other listed project. Returns null if the image is unknown.
+     */
+    public String lookup(String projectId, String image) {
+        if (image == null || image.startsWith(IMAGE_URL_PREFIX)) {
+            return image;
+        }
+
+        int slash = image.indexOf('/');
+        if (slash > 0) {
+            String imageProject = image.substring(0, slash);
+            ProjectImages projectImages = projects.get(imageProject);
+            if (projectImages == null) {
+                Compute connector = getRefreshConnector(projectId);
+                if (connector != null) {
+                    load(connector, imageProject);
+                    projectImages = projects.get(imageProject);
+                }
+            }
+            return projectImages == null ? null : projectImages.resolve(image.substring(slash + 1));
+        }
+
+        //The compute center project comes first so a private image can shadow a public one
+        if (projectId != null) {
+            ProjectImages projectImages = projects.get(projectId);
+            String url = projectImages == null ? null : projectImages.resolve(image);
+            if (url != null) {
+                return url;
+            }
+        }
+        for (String publicProject : publicProjects) {
+            ProjectImages projectImages = projects.get(publicProject);
+            String url = projectImages == null ? null : projectImages.resolve(image);
+            if (url != null) {
+                return url;
+            }
+        }
+        if (projectId == null) {
+            //No compute center to go by, any project listed so far will do
+            for (ProjectImages projectImages : projects.values()) {
+                String url = projectImages.resolve(image);
+                if (url != null) {
+                    return url;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns true once at least one project has been listed, i.e. when a failed {@link #lookup} means something.
+     */
+    public boolean isLoaded() {
+        return !projects.isEmpty();
+    }
+
+    private void load(Compute connector, String projectId) {
+        refreshConnectors.put(projectId, connector);
+        if (requested.add(projectId)) {
+            refresh(connector, projectId);
+        }
+    }
+
+    private Compute getRefreshConnector(String projectId) {
+        Compute connector = projectId == null ? null : refreshConnectors.get(projectId);
+        if (connector == null) {
+            Iterator<Compute> others = refreshConnectors.values().iterator();
+            connector = others.hasNext() ? others.next() : null;
+        }
+        return connector;
+    }
+
+    private void refreshAll() {
+        for (Map.Entry<String, Compute> entry : refreshConnectors.entrySet()) {
+            refresh(entry.getValue(), entry.getKey());
+        }
+    }
+
+    private void refresh(Compute connector, String projectId) {
+        try {
+            projects.put(projectId, listImages(connector, projectId));
+        } catch (IOException e) {
+            //Keep what we had, or try again shortly rather than having nothing until the next refresh
+            LOG.log(Level.WARNING, "Unable to list the images of project " + projectId, e);
+            if (!projects.containsKey(projectId)) {
+                scheduleRetry(projectId);
+            }
+        }
+    }
+
+    private void scheduleRetry(final String projectId) {
+        executorService.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Compute connector = refreshConnectors.get(projectId);
+                //Forgotten, or listed by the regular refresh meanwhile
+                if (connector != null && !projects.containsKey(projectId)) {
+                    refresh(connector, projectId);
+                }
+            }
+        }, retrySeconds, TimeUnit.SECONDS);
+    }
+
+    private ProjectImages listImages(Compute connector, String projectId) throws IOException {
+        final Map<String, String> byName = new HashMap<String, String>();
+        final Map<String, Image> latestByFamily = new HashMap<String, Image>();
+
+        RequestShaper.ItemHandler<Image> handler = new RequestShaper.ItemHandler<Image>() {
+            @Override
+            public void handle(Image image) {
+                String state = image.getDeprecated() == null ? null : image.getDeprecated().getState();
+                if ("DELETED".equals(state)) {
+                    return;
+                }
+                byName.put(image.getName(), image.getSelfLink());
+
+                String family = getFamily(image.getName());
+                if (family != null && state == null) {
+                    Image latest = latestByFamily.get(family);
+                    if (latest == null || getCreationTime(image) > getCreationTime(latest)) {
+                        latestByFamily.put(family, image);
+                    }
+                }
+            }
+        };
+        String pageToken = null;
+        do {
+            Compute.Images.List list = connector.images().list(projectId);
+            list.setMaxResults(PAGE_SIZE);
+            list.setPageToken(pageToken);
+            pageToken = RequestScheduler.getInstance().executeList(connector, projectId,
+                    RequestScheduler.Category.READ, list, Image.class, handler);
+        } while (pageToken != null);
+
+        Map<String, String> byFamily = new HashMap<String, String>();
+        for (Map.Entry<String, Image> entry : latestByFamily.entrySet()) {
+            byFamily.put(entry.getKey(), entry.getValue().getSelfLink());
+        }
+        return new ProjectImages(byName, byFamily);
+    }
+
+    private static String getFamily(String imageName) {
+        Matcher matcher = VERSIONED_NAME.matcher(imageName);
+        return matcher.matches() ? matcher.group(1) : null;
+    }
+
+    private static long getCreationTime(Image image) {
+        try {
+            return image.getCreationTimestamp() == null ? 0 : DateTime.parseRfc3339(image.getCreationTimestamp()).getValue();
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static class ProjectImages {
+        private final Map<String, String> byName;
+        private final Map<String, String> byFamily;
+
+        private ProjectImages(Map<String, String> byName, Map<String, String> byFamily) {
+            this.byName = byName;
+            this.byFamily = byFamily;
+        }
+
+        private String resolve(String image) {
+            String url = byName.get(image);
+            return url != null ? url : byFamily.get(image);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.appdynamics.cloud.connectors.gce;
+
+/**
+ * Validated properties of an image, bound by the {@link ConfigBinder}.
+ */
+public final class ImageConfig {
+
+    private final String machineType;
+    private final String image;
+    private final int warmPoolSize;
+
+    public ImageConfig(String machineType, String image, int warmPoolSize) {
+        this.machineType = machineType;
+        this.image = image;
+        this.warmPoolSize = warmPoolSize;
+    }
+
+    public String getMachineType() {
+        return machineType;
+    }
+
+    /**
+     * Image name or URL as entered, resolved against the {@link ImageCatalog} when a machine is created.
+     */
+    public String getImage() {
+        return image;
+    }
+
+    /**
+     * Number of boot disks of the image to keep ready in each zone, 0 when the image has no warm pool.
+     */
+    public int getWarmPoolSize() {
+        return warmPoolSize;
+    }
+
+    @Override
+    public String toString() {
+        return image + "/" + machineType;
+    }
+}
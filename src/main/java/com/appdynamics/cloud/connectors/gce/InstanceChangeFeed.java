@@ -0,0 +1,431 @@
+package com.appdynamics.cloud.connectors.gce;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.compute.Compute;
+import com.google.api.services.compute.model.Instance;
+import com.google.api.services.compute.model.Operation;
+import com.google.common.base.Joiner;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Local copy of the instances of each zone, kept current by following the operations of the zone.
+ */
+public class InstanceChangeFeed {
+
+    public static final String POLL_MILLIS_PROPERTY_KEY = "gce.connector.change.feed.poll.millis";
+    public static final String RESYNC_MINUTES_PROPERTY_KEY = "gce.connector.change.feed.resync.minutes";
+    public static final String IDLE_MINUTES_PROPERTY_KEY = "gce.connector.change.feed.idle.minutes";
+    public static final String MAX_STALENESS_SECONDS_PROPERTY_KEY = "gce.connector.change.feed.max.staleness.seconds";
+
+    private static final int DEFAULT_POLL_MILLIS = 5000;
+    private static final int DEFAULT_RESYNC_MINUTES = 15;
+    private static final int DEFAULT_IDLE_MINUTES = 30;
+    private static final int DEFAULT_MAX_STALENESS_SECONDS = 30;
+
+    //Operations can show up in the listing a little after they ended, and the clocks of GCE and ours differ
+    private static final long OVERLAP_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    //Beyond this the end time filter gets long and a full listing is cheaper
+    private static final long MAX_LAG_MILLIS = TimeUnit.HOURS.toMillis(6);
+    private static final long FILTER_STEP_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final long PAGE_SIZE = 500L;
+
+    private static final Pattern UTC_OFFSET = Pattern.compile("(Z|[+-]\\d{2}:\\d{2})$");
+
+    private static final Logger LOG = Logger.getLogger(InstanceChangeFeed.class.getName());
+
+    private final InstanceSnapshotCache snapshotCache;
+
+    private final ConcurrentMap<ZoneKey, ZoneFeed> feeds = new ConcurrentHashMap<ZoneKey, ZoneFeed>();
+
+    private final long resyncMillis;
+    private final long idleMillis;
+    private final long maxStalenessNanos;
+
+    private final AtomicLong rereads = new AtomicLong();
+
+    public InstanceChangeFeed(InstanceSnapshotCache snapshotCache) {
+        this(snapshotCache, Integer.getInteger(POLL_MILLIS_PROPERTY_KEY, DEFAULT_POLL_MILLIS),
+                TimeUnit.MINUTES.toMillis(Integer.getInteger(RESYNC_MINUTES_PROPERTY_KEY, DEFAULT_RESYNC_MINUTES)),
+                TimeUnit.MINUTES.toMillis(Integer.getInteger(IDLE_MINUTES_PROPERTY_KEY, DEFAULT_IDLE_MINUTES)),
+                TimeUnit.SECONDS.toMillis(Integer.getInteger(MAX_STALENESS_SECONDS_PROPERTY_KEY,
+                        DEFAULT_MAX_STALENESS_SECONDS)));
+    }
+
+    InstanceChangeFeed(InstanceSnapshotCache snapshotCache, long pollMillis, long resyncMillis, long idleMillis,
+                       long maxStalenessMillis) {
+        this.snapshotCache = snapshotCache;
+        this.resyncMillis = resyncMillis;
+        this.idleMillis = idleMillis;
+        this.maxStalenessNanos = TimeUnit.MILLISECONDS.toNanos(maxStalenessMillis);
+
+        ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("gce-change-feed-%d").build());
+        executorService.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                pollAll();
+            }
+        }, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the instance as the feed last saw it, or null if the zone does not have it. The zone is listed the
+     * first time it is asked for.
+     */
+    public Instance getInstance(Compute connector, String projectId, String zone, String instanceName) throws IOException {
+        ZoneKey key = new ZoneKey(projectId, zone);
+        ZoneFeed feed = feeds.get(key);
+        if (feed == null) {
+            ZoneFeed newFeed = new ZoneFeed(key);
+            feed = feeds.putIfAbsent(key, newFeed);
+            if (feed == null) {
+                feed = newFeed;
+            }
+        }
+        feed.connector = connector;
+        feed.lastUsed = System.currentTimeMillis();
+        feed.seed();
+        Tracked tracked = feed.instances.get(instanceName);
+        return tracked == null ? null : tracked.instance;
+    }
+
+    /**
+     * Records an instance read directly, e.g. a machine which is starting and therefore read on every refresh.
+     */
+    public void put(String projectId, String zone, Instance instance) {
+        ZoneFeed feed = feeds.get(new ZoneKey(projectId, zone));
+        if (feed != null && feed.seeded) {
+            feed.track(instance.getName(), instance, System.nanoTime());
+        }
+    }
+
+    /**
+     * Stops following the zones of the project.
+     */
+    public void forget(String projectId) {
+        for (ZoneKey key : feeds.keySet()) {
+            if (key.getProjectId().equals(projectId)) {
+                feeds.remove(key);
+            }
+        }
+        snapshotCache.forget(projectId);
+    }
+
+    /**
+     * Number of instances known over all zones.
+     */
+    public int getTrackedInstanceCount() {
+        int count = 0;
+        for (ZoneFeed feed : feeds.values()) {
+            count += feed.instances.size();
+        }
+        return count;
+    }
+
+    /**
+     * Number of instances read again, because an operation touched them or they were staler than allowed.
+     */
+    public long getRereadCount() {
+        return rereads.get();
+    }
+
+    private void pollAll() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<ZoneKey, ZoneFeed> entry : feeds.entrySet()) {
+            ZoneFeed feed = entry.getValue();
+            if (now - feed.lastUsed > idleMillis) {
+                feeds.remove(entry.getKey(), feed);
+                continue;
+            }
+            if (!feed.seeded) {
+                continue;
+            }
+            try {
+                if (now - feed.syncedAt > resyncMillis || now - feed.watermark > MAX_LAG_MILLIS) {
+                    feed.sync(true);
+                } else {
+                    feed.poll();
+                    feed.rereadStale();
+                }
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Unable to follow the changes in " + entry.getKey(), e);
+                if (!Utils.isRateLimitError(e)) {
+                    //The operations might not be listable at all, fall back to listing the instances
+                    feed.syncedAt = 0;
+                }
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, "Unable to follow the changes in " + entry.getKey(), e);
+            }
+        }
+    }
+
+    private static String getInstanceName(String targetLink) {
+        int index = targetLink == null ? -1 : targetLink.lastIndexOf("/instances/");
+        return index < 0 ? null : targetLink.substring(index + "/instances/".length());
+    }
+
+    private class ZoneFeed {
+
+        private final ZoneKey key;
+        private final ConcurrentMap<String, Tracked> instances = new ConcurrentHashMap<String, Tracked>();
+
+        private volatile Compute connector;
+        private volatile long lastUsed;
+        private volatile boolean seeded;
+
+        //Only used by the feed thread once seeded
+        private long watermark;
+        private long syncedAt;
+        private String utcOffset;
+        private final Map<String, Long> recentOperations = new HashMap<String, Long>();
+        private final Set<String> staleRereads = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        private ZoneFeed(ZoneKey key) {
+            this.key = key;
+        }
+
+        private void seed() throws IOException {
+            if (!seeded) {
+                synchronized (this) {
+                    if (!seeded) {
+                        sync(false);
+                        seeded = true;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Replaces what is known of the zone with a full listing. Changes made while listing are picked up by the
+         * next poll, which starts from when the listing started.
+         */
+        private void sync(boolean fresh) throws IOException {
+            long startedAt = System.currentTimeMillis();
+            if (fresh) {
+                snapshotCache.invalidate(key.getProjectId(), key.getZone());
+            }
+            Map<String, Instance> listed = refresh();
+            for (Instance instance : listed.values()) {
+                learnUtcOffset(instance.getCreationTimestamp());
+            }
+            watermark = startedAt;
+            syncedAt = startedAt;
+        }
+
+        /**
+         * Brings what is known of the zone up to date with a listing, keeping instances read since.
+         */
+        private Map<String, Instance> refresh() throws IOException {
+            //The snapshot handed out may have been taken up to its freshness before now
+            long readAt = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(snapshotCache.getFreshnessMillis());
+            Map<String, Instance> listed = snapshotCache.getInstances(connector, key.getProjectId(), key.getZone());
+            for (Instance instance : listed.values()) {
+                track(instance.getName(), instance, readAt);
+            }
+            for (Map.Entry<String, Tracked> entry : instances.entrySet()) {
+                if (!listed.containsKey(entry.getKey()) && entry.getValue().readAt - readAt < 0) {
+                    instances.remove(entry.getKey(), entry.getValue());
+                }
+            }
+            return listed;
+        }
+
+        /**
+         * Records the instance as read at the given time, unless it was read again later.
+         */
+        private void track(String instanceName, Instance instance, long readAt) {
+            Tracked tracked = new Tracked(instance, readAt);
+            Tracked current;
+            do {
+                current = instances.putIfAbsent(instanceName, tracked);
+                if (current == null || current.readAt - readAt > 0) {
+                    return;
+                }
+            } while (!instances.replace(instanceName, current, tracked));
+        }
+
+        private void poll() throws IOException {
+            Compute connector = this.connector;
+            final long from = watermark - OVERLAP_MILLIS;
+            String filter = "endTime eq '" + getEndTimePattern(from, System.currentTimeMillis()) + "'";
+
+            final Map<String, Operation> latestByInstance = new HashMap<String, Operation>();
+            final Map<String, Long> latestEndTimes = new HashMap<String, Long>();
+            //Single element so the handler can move it forward
+            final long[] newest = {watermark};
+            RequestShaper.ItemHandler<Operation> handler = new RequestShaper.ItemHandler<Operation>() {
+                @Override
+                public void handle(Operation operation) {
+                    long endTime = getEndTime(operation);
+                    if (endTime < from || recentOperations.containsKey(operation.getName())) {
+                        return;
+                    }
+                    recentOperations.put(operation.getName(), endTime);
+                    newest[0] = Math.max(newest[0], endTime);
+                    learnUtcOffset(operation.getEndTime());
+
+                    String instanceName = getInstanceName(operation.getTargetLink());
+                    Long latest = latestEndTimes.get(instanceName);
+                    if (instanceName != null && (latest == null || endTime >= latest)) {
+                        latestByInstance.put(instanceName, operation);
+                        latestEndTimes.put(instanceName, endTime);
+                    }
+                }
+            };
+            String pageToken = null;
+            do {
+                Compute.ZoneOperations.List list = connector.zoneOperations().list(key.getProjectId(), key.getZone());
+                list.setFilter(filter);
+                list.setMaxResults(PAGE_SIZE);
+                list.setPageToken(pageToken);
+                pageToken = RequestScheduler.getInstance().executeList(connector, key.getProjectId(),
+                        RequestScheduler.Category.READ, list, Operation.class, handler);
+            } while (pageToken != null);
+
+            for (Map.Entry<String, Operation> entry : latestByInstance.entrySet()) {
+                Operation operation = entry.getValue();
+                if ("delete".equals(operation.getOperationType()) && operation.getError() == null) {
+                    instances.remove(entry.getKey());
+                } else {
+                    //Inserts, stops, resets and anything else change the instance in ways only a read tells
+                    reread(connector, entry.getKey());
+                }
+            }
+
+            watermark = newest[0];
+            for (Iterator<Long> iterator = recentOperations.values().iterator(); iterator.hasNext(); ) {
+                if (iterator.next() < newest[0] - OVERLAP_MILLIS) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        /**
+         * Re-reads the instances staler than the feed allows. The reads are queued together, so the scheduler sends
+         * them in batch requests rather than one call each.
+         */
+        private void rereadStale() throws IOException {
+            long now = System.nanoTime();
+            for (Map.Entry<String, Tracked> entry : instances.entrySet()) {
+                Tracked tracked = entry.getValue();
+                //A TERMINATED instance only leaves that state through a start, which is an operation
+                if (!"TERMINATED".equals(tracked.instance.getStatus()) && now - tracked.readAt > maxStalenessNanos
+                        && staleRereads.add(entry.getKey())) {
+                    reread(connector, entry.getKey());
+                }
+            }
+        }
+
+        private void reread(Compute connector, final String instanceName) throws IOException {
+            rereads.incrementAndGet();
+            final long readAt = System.nanoTime();
+            Compute.Instances.Get get = connector.instances().get(key.getProjectId(), key.getZone(), instanceName);
+            Futures.addCallback(RequestScheduler.getInstance().submit(connector, key.getProjectId(),
+                    RequestScheduler.Category.READ, get), new FutureCallback<Instance>() {
+                @Override
+                public void onSuccess(Instance instance) {
+                    track(instanceName, instance, readAt);
+                    staleRereads.remove(instanceName);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    //Gone, or unknown for now, in which case the next refresh of the machine reads it directly
+                    Tracked current = instances.get(instanceName);
+                    if (current != null && current.readAt - readAt <= 0) {
+                        instances.remove(instanceName, current);
+                    }
+                    staleRereads.remove(instanceName);
+                    if (!Utils.isNotFoundError(t)) {
+                        LOG.log(Level.FINE, "Unable to read instance " + instanceName + " in " + key, t);
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+
+        /**
+         * Regular expression matching the end times GCE writes for the window, as the v1 filter has no greater
+         * than. Times are matched in steps of ten minutes, in the UTC offset GCE uses for the zone. Until that
+         * offset is known whole days around the window are matched.
+         */
+        private String getEndTimePattern(long from, long to) {
+            SimpleDateFormat format;
+            long step;
+            int length;
+            if (utcOffset == null) {
+                format = new SimpleDateFormat("yyyy-MM-dd");
+                format.setTimeZone(TimeZone.getTimeZone("GMT"));
+                step = TimeUnit.DAYS.toMillis(1);
+                length = "yyyy-MM-dd".length();
+                from -= step;
+                to += step;
+            } else {
+                format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm");
+                format.setTimeZone(TimeZone.getTimeZone("Z".equals(utcOffset) ? "GMT" : "GMT" + utcOffset));
+                step = FILTER_STEP_MILLIS;
+                length = "yyyy-MM-ddTHH:m".length();
+            }
+
+            Set<String> prefixes = new LinkedHashSet<String>();
+            for (long time = from; time < to; time += step) {
+                prefixes.add(format.format(new Date(time)).substring(0, length));
+            }
+            prefixes.add(format.format(new Date(to)).substring(0, length));
+            return "(" + Joiner.on('|').join(prefixes) + ").*";
+        }
+
+        private void learnUtcOffset(String timestamp) {
+            if (timestamp != null) {
+                Matcher matcher = UTC_OFFSET.matcher(timestamp);
+                if (matcher.find()) {
+                    utcOffset = matcher.group(1);
+                }
+            }
+        }
+
+        private long getEndTime(Operation operation) {
+            try {
+                return operation.getEndTime() == null ? 0 : DateTime.parseRfc3339(operation.getEndTime()).getValue();
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * An instance and when it was read, by {@link System#nanoTime()}.
+     */
+    private static class Tracked {
+
+        private final Instance instance;
+        private final long readAt;
+
+        private Tracked(Instance instance, long readAt) {
+            this.instance = instance;
+            this.readAt = readAt;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.appdynamics.cloud.connectors.gce;
+
+import com.google.api.services.compute.Compute;
+import com.google.api.services.compute.ComputeRequest;
+import com.google.api.services.compute.model.Instance;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per zone snapshot of all instances, listed once per freshness window and shared by concurrent refreshes.
+ */
+public class InstanceSnapshotCache {
+
+    public static final String FRESHNESS_MILLIS_PROPERTY_KEY = "gce.connector.instance.snapshot.freshness.millis";
+
+    private static final int DEFAULT_FRESHNESS_MILLIS = 5000;
+    private static final long PAGE_SIZE = 500L;
+
+    private final ConcurrentMap<ZoneKey, Snapshot> snapshots = new ConcurrentHashMap<ZoneKey, Snapshot>();
+    private final ConcurrentMap<ZoneKey, SettableFuture<Snapshot>> inFlight =
+            new ConcurrentHashMap<ZoneKey, SettableFuture<Snapshot>>();
+
+    private final long freshnessNanos;
+
+    public InstanceSnapshotCache() {
+        this(Integer.getInteger(FRESHNESS_MILLIS_PROPERTY_KEY, DEFAULT_FRESHNESS_MILLIS));
+    }
+
+    public InstanceSnapshotCache(int freshnessMillis) {
+        this.freshnessNanos = TimeUnit.MILLISECONDS.toNanos(freshnessMillis);
+    }
+
+    /**
+     * Returns the named instance from a fresh snapshot of its zone, or null if the zone listing does not contain it.
+     */
+    public Instance getInstance(Compute connector, String projectId, String zone, String instanceName) throws IOException {
+        return getSnapshot(connector, new ZoneKey(projectId, zone)).instances.get(instanceName);
+    }
+
+    /**
+     * Returns every instance of the zone by name, from a fresh snapshot.
+     */
+    public Map<String, Instance> getInstances(Compute connector, String projectId, String zone) throws IOException {
+        return getSnapshot(connector, new ZoneKey(projectId, zone)).instances;
+    }
+
+    /**
+     * Oldest a snapshot handed out can be.
+     */
+    public long getFreshnessMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(freshnessNanos);
+    }
+
+    /**
+     * Discards the snapshot of the zone so the next lookup lists it again.
+     */
+    public void invalidate(String projectId, String zone) {
+        snapshots.remove(new ZoneKey(projectId, zone));
+    }
+
+    /**
+     * Discards the snapshots of every zone of the project.
+     */
+    public void forget(String projectId) {
+        for (ZoneKey key : snapshots.keySet()) {
+            if (key.getProjectId().equals(projectId)) {
+                snapshots.remove(key);
+            }
+        }
+    }
+
+    private Snapshot getSnapshot(Compute connector, ZoneKey key) throws IOException {
+        Snapshot snapshot = snapshots.get(key);
+        if (snapshot != null && snapshot.isFresh()) {
+            return snapshot;
+        }
+
+        SettableFuture<Snapshot> future = SettableFuture.create();
+        SettableFuture<Snapshot> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            return awaitSnapshot(existing);
+        }
+
+        snapshot = snapshots.get(key);
+        if (snapshot != null && snapshot.isFresh()) {
+            //Listed while this caller was getting in line
+            inFlight.remove(key, future);
+            future.set(snapshot);
+            return snapshot;
+        }
+        listZone(connector, key, future);
+        return awaitSnapshot(future);
+    }
+
+    private Snapshot awaitSnapshot(SettableFuture<Snapshot> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the zone instance listing", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Unable to list the zone instances", cause);
+        }
+    }
+
+    /**
+     * Lists the zone and completes the future with its snapshot, leaving the zone to the next refresh once done.
+     */
+    private void listZone(final Compute connector, final ZoneKey key, final SettableFuture<Snapshot> future) {
+        final long startedAt = System.nanoTime();
+        //Pages are handled one after the other, each completing before the next is sent
+        final Map<String, Instance> instances = new HashMap<String, Instance>();
+        RequestShaper.ItemHandler<Instance> handler = new RequestShaper.ItemHandler<Instance>() {
+            @Override
+            public void handle(Instance instance) {
+                instances.put(instance.getName(), instance);
+            }
+        };
+        RequestScheduler.PageRequestFactory pages = new RequestScheduler.PageRequestFactory() {
+            @Override
+            public ComputeRequest<?> create(String pageToken) throws IOException {
+                Compute.Instances.List list = connector.instances().list(key.getProjectId(), key.getZone());
+                list.setMaxResults(PAGE_SIZE);
+                list.setPageToken(pageToken);
+                return list;
+            }
+        };
+        ListenableFuture<Void> listed = RequestScheduler.getInstance().submitListAll(connector, key.getProjectId(),
+                RequestScheduler.Category.READ, pages, Instance.class, handler);
+        Futures.addCallback(listed, new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                Snapshot snapshot = new Snapshot(Collections.unmodifiableMap(instances), startedAt);
+                snapshots.put(key, snapshot);
+                inFlight.remove(key, future);
+                future.set(snapshot);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                inFlight.remove(key, future);
+                future.setException(t);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    private class Snapshot {
+        private final Map<String, Instance> instances;
+        private final long takenAt;
+
+        private Snapshot(Map<String, Instance> instances, long takenAt) {
+            this.instances = instances;
+            this.takenAt = takenAt;
+        }
+
+        private boolean isFresh() {
+            return System.nanoTime() - takenAt < freshnessNanos;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.appdynamics.cloud.connectors.gce;
+
+/**
+ * Validated properties of a machine descriptor, bound by the {@link ConfigBinder}.
+ */
+public final class MachineDescriptorConfig {
+
+    private final String instanceName;
+    private final String zone;
+
+    public MachineDescriptorConfig(String instanceName, String zone) {
+        this.instanceName = instanceName;
+        this.zone = zone;
+    }
+
+    public String getInstanceName() {
+        return instanceName;
+    }
+
+    public String getZone() {
+        return zone;
+    }
+
+    @Override
+    public String toString() {
+        return zone + "/" + instanceName;
+    }
+}
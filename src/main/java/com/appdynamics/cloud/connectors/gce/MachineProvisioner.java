@@ -0,0 +1,416 @@
+package com.appdynamics.cloud.connectors.gce;
+
+import com.google.api.services.compute.Compute;
+import com.google.api.services.compute.model.AccessConfig;
+import com.google.api.services.compute.model.AttachedDisk;
+import com.google.api.services.compute.model.AttachedDiskInitializeParams;
+import com.google.api.services.compute.model.Disk;
+import com.google.api.services.compute.model.Instance;
+import com.google.api.services.compute.model.NetworkInterface;
+import com.google.api.services.compute.model.Operation;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.singularity.ee.connectors.api.ConnectorException;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Builds machines in the background as a state machine of disk and instance inserts.
+ */
+public class MachineProvisioner {
+
+    public static final String THREADS_PROPERTY_KEY = "gce.connector.provisioner.threads";
+    public static final String MAX_IN_FLIGHT_PROPERTY_KEY = "gce.connector.provisioner.max.inflight";
+
+    private static final int DEFAULT_THREADS = 4;
+    private static final int DEFAULT_MAX_IN_FLIGHT = 200;
+
+    private static final Logger LOG = Logger.getLogger(MachineProvisioner.class.getName());
+
+    public enum Phase {
+        CREATING_DISK, WAITING_FOR_DISK, INSERTING_INSTANCE, WAITING_FOR_INSTANCE, DONE, FAILED
+    }
+
+    private final ExecutorService executorService;
+    private final DiskReaper diskReaper;
+    private final Semaphore inFlightPermits;
+    private final int maxInFlight;
+
+    private final ConcurrentMap<String, Provisioning> provisionings = new ConcurrentHashMap<String, Provisioning>();
+
+    public MachineProvisioner(DiskReaper diskReaper) {
+        this.diskReaper = diskReaper;
+        executorService = Executors.newFixedThreadPool(Integer.getInteger(THREADS_PROPERTY_KEY, DEFAULT_THREADS),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("gce-provisioner-%d").build());
+        maxInFlight = Integer.getInteger(MAX_IN_FLIGHT_PROPERTY_KEY, DEFAULT_MAX_IN_FLIGHT);
+        inFlightPermits = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Starts building the requested machine in the background and returns a handle to follow its progress.
+     */
+    public Provisioning provision(Compute connector, ProvisioningRequest request) throws ConnectorException {
+        if (!inFlightPermits.tryAcquire()) {
+            throw new ConnectorException("Too many machines are being provisioned, unable to create instance " +
+                    request.getInstanceName());
+        }
+
+        Provisioning provisioning = new Provisioning(connector, request);
+        String key = key(request.getProjectId(), request.getZone(), request.getInstanceName());
+        if (provisionings.putIfAbsent(key, provisioning) != null) {
+            inFlightPermits.release();
+            throw new ConnectorException("Instance " + request.getInstanceName() + " is already being provisioned");
+        }
+
+        provisioning.start();
+        return provisioning;
+    }
+
+    /**
+     * Returns the provisioning of the named machine, or null if the provisioner does not know about it.
+     */
+    public Provisioning getProvisioning(String projectId, String zone, String instanceName) {
+        return provisionings.get(key(projectId, zone, instanceName));
+    }
+
+    /**
+     * Drops a finished provisioning once its outcome has been reported.
+     */
+    public void forget(Provisioning provisioning) {
+        ProvisioningRequest request = provisioning.request;
+        provisionings.remove(key(request.getProjectId(), request.getZone(), request.getInstanceName()), provisioning);
+    }
+
+    /**
+     * Number of machines being provisioned.
+     */
+    public int getInFlightCount() {
+        return maxInFlight - inFlightPermits.availablePermits();
+    }
+
+    private static String key(String projectId, String zone, String instanceName) {
+        return projectId + "/" + zone + "/" + instanceName;
+    }
+
+    private static Instance populateInstance(ProvisioningRequest request) {
+        String instanceName = request.getInstanceName();
+
+        Instance instance = new Instance();
+        instance.setName(instanceName);
+        instance.setMachineType(request.getMachineTypeUrl());
+        instance.setZone(request.getZone());
+
+        NetworkInterface networkInterface = new NetworkInterface();
+        networkInterface.setName("Default");
+        networkInterface.setNetwork(request.getNetworkUrl());
+
+        AccessConfig accessConfig = new AccessConfig();
+        accessConfig.setName("External NAT");
+        accessConfig.setType("ONE_TO_ONE_NAT");
+
+        networkInterface.setAccessConfigs(Lists.newArrayList(accessConfig));
+        instance.setNetworkInterfaces(Lists.newArrayList(networkInterface));
+
+        AttachedDisk attachedDisk = new AttachedDisk();
+        attachedDisk.setBoot(true);
+        attachedDisk.setType("PERSISTENT");
+        attachedDisk.setMode("READ_WRITE");
+        attachedDisk.setDeviceName(instanceName);
+        if (request.isInlineBootDisk()) {
+            //GCE creates the disk from the image as part of the instance insert and deletes it with the instance
+            AttachedDiskInitializeParams initializeParams = new AttachedDiskInitializeParams();
+            initializeParams.setDiskName(instanceName);
+            initializeParams.setSourceImage(request.getSourceImageUrl());
+            attachedDisk.setInitializeParams(initializeParams);
+            attachedDisk.setAutoDelete(true);
+        } else {
+            attachedDisk.setSource(request.getBootDiskUrl());
+            if (request.getWarmDiskName() != null) {
+                //The warm disk is not named after the instance, so the disk reaper would not find it
+                attachedDisk.setAutoDelete(true);
+            }
+        }
+
+        instance.setDisks(Lists.newArrayList(attachedDisk));
+        return instance;
+    }
+
+    /**
+     * Progress of one machine through the provisioning steps.
+     */
+    public class Provisioning implements Runnable {
+
+        private final Compute connector;
+        private final ProvisioningRequest request;
+        private final SettableFuture<Void> result = SettableFuture.create();
+        private OperationJournal.Entry journalEntry;
+
+        private volatile Phase phase;
+        private volatile Throwable failure;
+        private boolean cancelled;
+        private boolean instanceInsertSent;
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        private Provisioning(Compute connector, ProvisioningRequest request) {
+            this.connector = connector;
+            this.request = request;
+            this.phase = request.isInlineBootDisk() || request.getWarmDiskName() != null
+                    ? Phase.INSERTING_INSTANCE : Phase.CREATING_DISK;
+        }
+
+        public Phase getPhase() {
+            return phase;
+        }
+
+        public Throwable getFailure() {
+            return failure;
+        }
+
+        public boolean isFinished() {
+            return phase == Phase.DONE || phase == Phase.FAILED;
+        }
+
+        /**
+         * Completes when the instance has been created, or fails with the error that stopped provisioning.
+         */
+        public ListenableFuture<Void> getResult() {
+            return result;
+        }
+
+        /**
+         * Stops provisioning if the instance insert has not been sent yet, rolling back the boot disk.
+         * Returns false if it is too late and the instance exists (or is about to).
+         */
+        public synchronized boolean cancel() {
+            if (!instanceInsertSent) {
+                cancelled = true;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Gives up on the machine when the controller will never learn about it: provisioning is cancelled, or if the
+         * instance insert was already sent, the instance and its boot disk are deleted once it completes.
+         */
+        public void discard() {
+            forget(this);
+            if (cancel()) {
+                return;
+            }
+            Futures.addCallback(result, new FutureCallback<Void>() {
+                @Override
+                public void onSuccess(Void ignored) {
+                    deleteInstance();
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    //Provisioning rolled back what it created
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+
+        private void deleteInstance() {
+            //Inline and warm boot disks are deleted by GCE together with the instance
+            final String diskName = request.isInlineBootDisk() || request.getWarmDiskName() != null
+                    ? null : request.getBootDiskName();
+            Compute.Instances.Delete delete;
+            try {
+                delete = connector.instances().delete(request.getProjectId(), request.getZone(), request.getInstanceName());
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Unable to delete discarded instance " + request.getInstanceName(), e);
+                return;
+            }
+            Futures.addCallback(RequestScheduler.getInstance().submit(connector, request.getProjectId(),
+                    RequestScheduler.Category.MUTATION, delete), new FutureCallback<Operation>() {
+                @Override
+                public void onSuccess(Operation operation) {
+                    if (diskName == null) {
+                        return;
+                    }
+                    OperationJournal.Entry entry = OperationJournal.getInstance().begin(request.getServiceAccountKey(),
+                            request.getProjectId(), request.getZone(), request.getInstanceName(), diskName, false);
+                    OperationJournal.getInstance().record(entry, OperationJournal.Phase.INSTANCE_DELETE,
+                            operation.getName());
+                    diskReaper.reapAfter(connector, request.getProjectId(), request.getZone(), operation, diskName, entry);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    LOG.log(Level.WARNING, "Unable to delete discarded instance " + request.getInstanceName(), t);
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+
+        @Override
+        public void run() {
+            try {
+                switch (phase) {
+                    case CREATING_DISK:
+                        if (isCancelled()) {
+                            fail(new ConnectorException("Provisioning of " + request.getInstanceName() + " cancelled"));
+                            return;
+                        }
+                        createBootDisk();
+                        break;
+                    case INSERTING_INSTANCE:
+                        synchronized (this) {
+                            if (cancelled) {
+                                fail(new ConnectorException("Provisioning of " + request.getInstanceName() + " cancelled"));
+                                return;
+                            }
+                            instanceInsertSent = true;
+                        }
+                        insertInstance();
+                        break;
+                    default:
+                        break;
+                }
+            } catch (IOException e) {
+                fail(e);
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        private synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        private void await(Operation operation, final Phase nextPhase) {
+            ListenableFuture<Operation> future = OperationPoller.getInstance()
+                    .watch(connector, request.getProjectId(), request.getZone(), operation);
+            Futures.addCallback(future, new FutureCallback<Operation>() {
+                @Override
+                public void onSuccess(Operation operation) {
+                    if (nextPhase != Phase.DONE) {
+                        phase = nextPhase;
+                        dispatch();
+                    } else if (finished.compareAndSet(false, true)) {
+                        phase = Phase.DONE;
+                        OperationJournal.getInstance().end(journalEntry);
+                        inFlightPermits.release();
+                        result.set(null);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    fail(t);
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+
+        /**
+         * Begins the journal entry and dispatches the first step. Only the provisioning registered for the machine
+         * is started, so a duplicate never shows up in the journal.
+         */
+        private void start() {
+            journalEntry = OperationJournal.getInstance().begin(request.getServiceAccountKey(),
+                    request.getProjectId(), request.getZone(), request.getInstanceName(),
+                    request.isInlineBootDisk() ? null : request.getBootDiskName(), request.isAsynchronousProvisioning());
+            dispatch();
+        }
+
+        private void dispatch() {
+            try {
+                executorService.execute(this);
+            } catch (RejectedExecutionException e) {
+                fail(e);
+            }
+        }
+
+        private void createBootDisk() throws IOException {
+
+            Disk disk = new Disk();
+            disk.setName(request.getInstanceName());
+            disk.setDescription(DiskReaper.BOOT_DISK_DESCRIPTION);
+            disk.setSourceImage(request.getSourceImageUrl());
+            Compute.Disks.Insert insertDisk = connector.disks().insert(request.getProjectId(), request.getZone(), disk);
+            insertDisk.setSourceImage(request.getSourceImageUrl());
+
+            //Disk inserts of machines created together are sent in one batch request
+            final ConnectorMetrics.Timer timer = ConnectorMetrics.getInstance().start(ConnectorMetrics.Step.DISK_INSERT);
+            Futures.addCallback(RequestScheduler.getInstance().submit(connector, request.getProjectId(),
+                    RequestScheduler.Category.MUTATION, insertDisk), new FutureCallback<Operation>() {
+                @Override
+                public void onSuccess(Operation operation) {
+                    timer.stop();
+                    OperationJournal.getInstance().record(journalEntry, OperationJournal.Phase.DISK_INSERT,
+                            operation.getName());
+                    phase = Phase.WAITING_FOR_DISK;
+                    await(operation, Phase.INSERTING_INSTANCE);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    timer.stop(t);
+                    LOG.log(Level.WARNING, "Unable to create boot disk", t);
+                    fail(new ConnectorException("Unable to create boot disk", t));
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+
+        private void insertInstance() throws IOException {
+            Instance instance = populateInstance(request);
+            Compute.Instances.Insert insert = connector.instances().insert(request.getProjectId(), request.getZone(), instance);
+
+            final ConnectorMetrics.Timer timer = ConnectorMetrics.getInstance().start(ConnectorMetrics.Step.INSTANCE_INSERT);
+
+            Futures.addCallback(RequestScheduler.getInstance().submit(connector, request.getProjectId(),
+                    RequestScheduler.Category.MUTATION, insert), new FutureCallback<Operation>() {
+                @Override
+                public void onSuccess(Operation operation) {
+                    timer.stop();
+                    OperationJournal.getInstance().record(journalEntry, OperationJournal.Phase.INSTANCE_INSERT,
+                            operation.getName());
+                    phase = Phase.WAITING_FOR_INSTANCE;
+                    await(operation, Phase.DONE);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    timer.stop(t);
+                    LOG.log(Level.WARNING, "Unable to create instance", t);
+                    fail(new ConnectorException("Unable to create instance", t));
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+
+        private void fail(Throwable t) {
+            Phase failedPhase = phase;
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+            failure = t;
+            phase = Phase.FAILED;
+            LOG.log(Level.WARNING, "Provisioning of " + request.getInstanceName() + " failed while " + failedPhase, t);
+
+            if (request.isInlineBootDisk()) {
+                //GCE creates the disk with the instance and drops it if the insert fails
+                OperationJournal.getInstance().end(journalEntry);
+            } else {
+                //Also when the instance insert failed: GCE refuses to delete a disk an instance still holds
+                OperationJournal.getInstance().record(journalEntry, OperationJournal.Phase.DISK_DELETE, null);
+                diskReaper.reap(connector, request.getProjectId(), request.getZone(), request.getBootDiskName(),
+                        journalEntry);
+            }
+            inFlightPermits.release();
+            result.setException(t);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.appdynamics.cloud.connectors.gce;
+
+import com.google.api.services.compute.Compute;
+import com.google.api.services.compute.model.Operation;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resets machines in place and follows the reset operations in the background.
+ */
+public class MachineRestarter {
+
+    private static final Logger LOG = Logger.getLogger(MachineRestarter.class.getName());
+
+    private final ConcurrentMap<String, Restart> restarts = new ConcurrentHashMap<String, Restart>();
+
+    /**
+     * Sends the reset of the named instance and starts following its operation. A machine that is already being
+     * reset is not reset again; its restart in flight is returned instead.
+     */
+    public Restart restart(Compute connector, String projectId, String zone, String instanceName) throws IOException {
+        String key = key(projectId, zone, instanceName);
+        final Restart restart = new Restart(key);
+        Restart existing = restarts.putIfAbsent(key, restart);
+        if (existing != null) {
+            return existing;
+        }
+
+        Operation operation;
+        try {
+            Compute.Instances.Reset reset = connector.instances().reset(projectId, zone, instanceName);
+            operation = RequestScheduler.getInstance().execute(connector, projectId,
+                    RequestScheduler.Category.MUTATION, reset);
+        } catch (IOException e) {
+            finish(restart, e);
+            throw e;
+        } catch (RuntimeException e) {
+            finish(restart, e);
+            throw e;
+        }
+
+        Futures.addCallback(OperationPoller.getInstance().watch(connector, projectId, zone, operation),
+                new FutureCallback<Operation>() {
+                    @Override
+                    public void onSuccess(Operation operation) {
+                        finish(restart, null);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        LOG.log(Level.WARNING, "Reset of instance " + restart.key + " did not complete", t);
+                        finish(restart, t);
+                    }
+                }, MoreExecutors.sameThreadExecutor());
+        return restart;
+    }
+
+    /**
+     * Returns the restart in flight of the named machine, or null if it is not being restarted.
+     */
+    public Restart getRestart(String projectId, String zone, String instanceName) {
+        return restarts.get(key(projectId, zone, instanceName));
+    }
+
+    /**
+     * Stops tracking a restart, e.g. of a machine being terminated.
+     */
+    public void forget(Restart restart) {
+        restarts.remove(restart.key, restart);
+    }
+
+    /**
+     * Number of machines being restarted.
+     */
+    public int getInFlightCount() {
+        return restarts.size();
+    }
+
+    private void finish(Restart restart, Throwable failure) {
+        restarts.remove(restart.key, restart);
+        if (failure == null) {
+            restart.result.set(null);
+        } else {
+            restart.result.setException(failure);
+        }
+    }
+
+    private static String key(String projectId, String zone, String instanceName) {
+        return projectId + "/" + zone + "/" + instanceName;
+    }
+
+    /**
+     * Handle on the reset of one machine.
+     */
+    public static class Restart {
+
+        private final String key;
+        private final SettableFuture<Void> result = SettableFuture.create();
+
+        private Restart(String key) {
+            this.key = key;
+        }
+
+        public boolean isFinished() {
+            return result.isDone();
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package com.appdynamics.cloud.connectors.gce;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Local journal of the operations in flight, so they can be finished or rolled back after a restart.
+ */
+public class OperationJournal {
+
+    public static final String FILE_PROPERTY_KEY = "gce.connector.journal.file";
+    public static final String SYNC_PROPERTY_KEY = "gce.connector.journal.sync";
+    public static final String COMPACT_SECONDS_PROPERTY_KEY = "gce.connector.journal.compact.seconds";
+
+    private static final String DEFAULT_DIRECTORY = ".appdynamics" + File.separator + "gce-connector";
+    private static final String DEFAULT_FILE_NAME = "operations.journal";
+    private static final int DEFAULT_COMPACT_SECONDS = 60;
+
+    /**
+     * Stale lines tolerated before the journal is compacted, on top of one per live entry.
+     */
+    private static final int MIN_STALE_LINES = 256;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String PUT = "P";
+    private static final String END = "E";
+    private static final int PUT_FIELDS = 11;
+
+    private static final Logger LOG = Logger.getLogger(OperationJournal.class.getName());
+
+    private static final OperationJournal INSTANCE = new OperationJournal();
+
+    /**
+     * What the operation of an entry does.
+     */
+    public enum Phase {
+        DISK_INSERT, INSTANCE_INSERT, INSTANCE_DELETE, DISK_DELETE
+    }
+
+    private final File file;
+    private final boolean sync;
+    private final AtomicLong nextId = new AtomicLong(1);
+
+    private FileLock lock;
+
+    private final Map<Long, Entry> live = new LinkedHashMap<Long, Entry>();
+    private List<Entry> recovered = Collections.emptyList();
+    private FileOutputStream out;
+    private Writer writer;
+    private int lines;
+
+    /**
+     * Private constructor on singleton.
+     */
+    private OperationJournal() {
+        this(configuredFile(), Boolean.getBoolean(SYNC_PROPERTY_KEY));
+    }
+
+    /**
+     * Journal kept in the given file, or none if null.
+     */
+    OperationJournal(File file, boolean sync) {
+        this.file = file;
+        this.sync = sync;
+        if (file == null) {
+            return;
+        }
+
+        try {
+            if (!lock()) {
+                LOG.log(Level.WARNING, "The operation journal " + file + " is used by another process, operations " +
+                        "in flight will not survive a restart");
+                return;
+            }
+            recovered = read();
+            for (Entry entry : recovered) {
+                live.put(entry.id, entry);
+                nextId.set(Math.max(nextId.get(), entry.id + 1));
+            }
+            compact();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Unable to open the operation journal " + file + ", operations in flight will " +
+                    "not survive a restart", e);
+            close();
+            return;
+        }
+
+        ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("gce-operation-journal-%d").build());
+        long compactSeconds = Integer.getInteger(COMPACT_SECONDS_PROPERTY_KEY, DEFAULT_COMPACT_SECONDS);
+        executorService.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                compactIfStale();
+            }
+        }, compactSeconds, compactSeconds, TimeUnit.SECONDS);
+    }
+
+    public static OperationJournal getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * The file named by {@value #FILE_PROPERTY_KEY}, or one under the home directory of the user running the
+     * controller; null if the property is empty, which turns the journal off.
+     */
+    private static File configuredFile() {
+        String path = System.getProperty(FILE_PROPERTY_KEY, new File(new File(System.getProperty("user.home"),
+                DEFAULT_DIRECTORY), DEFAULT_FILE_NAME).getPath());
+        return path.trim().length() == 0 ? null : new File(path.trim());
+    }
+
+    /**
+     * Creates the entry of a machine, which is written the first time a phase is recorded for it.
+     */
+    public Entry begin(ServiceAccountKey serviceAccountKey, String projectId, String zone, String machineName,
+                       String diskName, boolean asynchronous) {
+        return new Entry(nextId.getAndIncrement(), serviceAccountKey, projectId, zone, machineName, diskName,
+                asynchronous);
+    }
+
+    /**
+     * Records that the entry is waiting on the named operation, or on nothing but its own retries when null.
+     */
+    public synchronized void record(Entry entry, Phase phase, String operationName) {
+        entry.phase = phase;
+        entry.operationName = operationName;
+        if (writer == null) {
+            return;
+        }
+        live.put(entry.id, entry);
+        append(entry.toLine());
+    }
+
+    /**
+     * Records that nothing is left to do for the entry.
+     */
+    public synchronized void end(Entry entry) {
+        if (writer == null || live.remove(entry.id) == null) {
+            return;
+        }
+        append(END + "\t" + entry.id);
+    }
+
+    /**
+     * Returns the entries left in flight by the last run, the first time it is called.
+     */
+    public synchronized List<Entry> recover() {
+        List<Entry> result = recovered;
+        recovered = Collections.emptyList();
+        return result;
+    }
+
+    /**
+     * Number of entries in flight.
+     */
+    public synchronized int getLiveCount() {
+        return live.size();
+    }
+
+    /**
+     * Stops writing the journal and releases its lock, so another journal can take it over.
+     */
+    synchronized void release() {
+        close();
+        if (lock == null) {
+            return;
+        }
+        try {
+            lock.channel().close();
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Unable to release the lock of the operation journal " + file, e);
+        }
+        lock = null;
+    }
+
+    private void append(String line) {
+        try {
+            writer.write(line);
+            writer.write('\n');
+            //Flushed to the operating system, which survives the controller dying; synced only on request
+            writer.flush();
+            if (sync) {
+                out.getFD().sync();
+            }
+            lines++;
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Unable to write to the operation journal " + file, e);
+        }
+    }
+
+    /**
+     * Takes the lock of the journal for the life of the process. Returns false if another process holds it.
+     */
+    private boolean lock() throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        //Locked apart from the journal itself, which compaction replaces
+        FileChannel channel = new RandomAccessFile(file.getPath() + ".lock", "rw").getChannel();
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            //Held by this process, through another load of the connector
+            lock = null;
+        }
+        if (lock == null) {
+            channel.close();
+            return false;
+        }
+        return true;
+    }
+
+    private List<Entry> read() throws IOException {
+        Map<Long, Entry> entries = new LinkedHashMap<Long, Entry>();
+        if (!file.exists()) {
+            return new ArrayList<Entry>();
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                try {
+                    if (PUT.equals(fields[0]) && fields.length == PUT_FIELDS) {
+                        Entry entry = Entry.fromFields(fields);
+                        entries.put(entry.id, entry);
+                    } else if (END.equals(fields[0]) && fields.length == 2) {
+                        entries.remove(Long.parseLong(fields[1]));
+                    } else {
+                        LOG.log(Level.FINE, "Skipping malformed operation journal line " + line);
+                    }
+                } catch (IllegalArgumentException e) {
+                    //Such as the last line being torn by the process dying while writing it
+                    LOG.log(Level.FINE, "Skipping malformed operation journal line " + line, e);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    private synchronized void compactIfStale() {
+        if (writer == null || lines - live.size() < live.size() + MIN_STALE_LINES) {
+            return;
+        }
+        try {
+            compact();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Unable to compact the operation journal " + file, e);
+        }
+    }
+
+    /**
+     * Rewrites the journal with only the live entries and reopens it for appending.
+     */
+    private void compact() throws IOException {
+        File compacted = new File(file.getPath() + ".tmp");
+        FileOutputStream compactedOut = new FileOutputStream(compacted);
+        try {
+            Writer compactedWriter = new BufferedWriter(new OutputStreamWriter(compactedOut, UTF_8));
+            for (Entry entry : live.values()) {
+                compactedWriter.write(entry.toLine());
+                compactedWriter.write('\n');
+            }
+            compactedWriter.flush();
+            compactedOut.getFD().sync();
+        } finally {
+            compactedOut.close();
+        }
+
+        close();
+        //Not atomic where renaming onto an existing file fails, the journal is then rebuilt from the live entries
+        if (!compacted.renameTo(file) && !(file.delete() && compacted.renameTo(file))) {
+            throw new IOException("Unable to replace " + file + " with " + compacted);
+        }
+        out = new FileOutputStream(file, true);
+        writer = new BufferedWriter(new OutputStreamWriter(out, UTF_8));
+        lines = live.size();
+    }
+
+    private void close() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Unable to close the operation journal " + file, e);
+        }
+        writer = null;
+        out = null;
+    }
+
+    /**
+     * A machine the connector is waiting on a GCE operation for.
+     */
+    public static class Entry {
+
+        private final long id;
+        private final ServiceAccountKey serviceAccountKey;
+        private final String projectId;
+        private final String zone;
+        private final String machineName;
+        private final String diskName;
+        private final boolean asynchronous;
+
+        private volatile Phase phase;
+        private volatile String operationName;
+
+        private Entry(long id, ServiceAccountKey serviceAccountKey, String projectId, String zone, String machineName,
+                      String diskName, boolean asynchronous) {
+            this.id = id;
+            this.serviceAccountKey = serviceAccountKey;
+            this.projectId = projectId;
+            this.zone = zone;
+            this.machineName = machineName;
+            this.diskName = diskName;
+            this.asynchronous = asynchronous;
+        }
+
+        private static Entry fromFields(String[] fields) {
+            Entry entry = new Entry(Long.parseLong(fields[1]), new ServiceAccountKey(fields[9], fields[10]),
+                    fields[4], fields[5], fields[6], fields[7].length() == 0 ? null : fields[7],
+                    Boolean.parseBoolean(fields[8]));
+            entry.phase = Phase.valueOf(fields[2]);
+            entry.operationName = fields[3].length() == 0 ? null : fields[3];
+            return entry;
+        }
+
+        private String toLine() {
+            return PUT + "\t" + id + "\t" + phase + "\t" + (operationName == null ? "" : operationName) + "\t" +
+                    projectId + "\t" + zone + "\t" + machineName + "\t" + (diskName == null ? "" : diskName) + "\t" +
+                    asynchronous + "\t" + serviceAccountKey.getServiceAccountId() + "\t" +
+                    serviceAccountKey.getServiceAccountP12FilePath();
+        }
+
+        public ServiceAccountKey getServiceAccountKey() {
+            return serviceAccountKey;
+        }
+
+        public String getProjectId() {
+            return projectId;
+        }
+
+        public String getZone() {
+            return zone;
+        }
+
+        public String getMachineName() {
+            return machineName;
+        }
+
+        /**
+         * Boot disk to delete if the machine is rolled back or once its instance is gone, or null if GCE deletes
+         * it together with the instance.
+         */
+        public String getDiskName() {
+            return diskName;
+        }
+
+        /**
+         * Whether the controller already knows the machine, as it does once an asynchronous create returned.
+         */
+        public boolean isAsynchronous() {
+            return asynchronous;
+        }
+
+        public Phase getPhase() {
+            return phase;
+        }
+
+        public String getOperationName() {
+            return operationName;
+        }
+
+        @Override
+        public String toString() {
+            return projectId + "/" + zone + "/" + machineName + " " + phase + " " + operationName;
+        }
+    }
+}
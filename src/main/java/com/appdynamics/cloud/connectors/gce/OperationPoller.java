@@ -0,0 +1,239 @@
+package com.appdynamics.cloud.connectors.gce;
+
+import com.google.api.services.compute.Compute;
+import com.google.api.services.compute.model.Operation;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.singularity.ee.connectors.api.ConnectorException;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Polls pending GCE zone operations with backoff on a small shared pool of threads.
+ */
+public class OperationPoller {
+
+    public static final String THREADS_PROPERTY_KEY = "gce.connector.operation.poller.threads";
+    public static final String INITIAL_DELAY_MILLIS_PROPERTY_KEY = "gce.connector.operation.poll.initial.millis";
+    public static final String MAX_DELAY_MILLIS_PROPERTY_KEY = "gce.connector.operation.poll.max.millis";
+    public static final String TIMEOUT_SECONDS_PROPERTY_KEY = "gce.connector.operation.timeout.seconds";
+
+    private static final int DEFAULT_THREADS = 2;
+    private static final int DEFAULT_INITIAL_DELAY_MILLIS = 1000;
+    private static final int DEFAULT_MAX_DELAY_MILLIS = 15000;
+    private static final int DEFAULT_TIMEOUT_SECONDS = 600;
+
+    private static final Logger LOG = Logger.getLogger(OperationPoller.class.getName());
+
+    private static final OperationPoller INSTANCE = new OperationPoller();
+
+    private final ScheduledExecutorService executorService;
+
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final long timeoutNanos;
+
+    private final AtomicInteger pendingOperations = new AtomicInteger();
+
+    /**
+     * Private constructor on singleton.
+     */
+    private OperationPoller() {
+        executorService = Executors.newScheduledThreadPool(Integer.getInteger(THREADS_PROPERTY_KEY, DEFAULT_THREADS),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("gce-operation-poller-%d").build());
+        initialDelayMillis = Integer.getInteger(INITIAL_DELAY_MILLIS_PROPERTY_KEY, DEFAULT_INITIAL_DELAY_MILLIS);
+        maxDelayMillis = Integer.getInteger(MAX_DELAY_MILLIS_PROPERTY_KEY, DEFAULT_MAX_DELAY_MILLIS);
+        timeoutNanos = TimeUnit.SECONDS.toNanos(Integer.getInteger(TIMEOUT_SECONDS_PROPERTY_KEY, DEFAULT_TIMEOUT_SECONDS));
+    }
+
+    public static OperationPoller getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts tracking the given zone operation. The returned future completes with the final operation
+     * once it is DONE, or fails with a {@link ConnectorException} if GCE reports an error for it, the
+     * operation can no longer be found or it does not finish within the configured timeout.
+     */
+    public ListenableFuture<Operation> watch(Compute connector, String projectId, String zone, Operation operation) {
+        SettableFuture<Operation> future = SettableFuture.create();
+        ConnectorMetrics.Timer timer = ConnectorMetrics.getInstance().start(ConnectorMetrics.Step.OPERATION_WAIT);
+        if ("DONE".equals(operation.getStatus())) {
+            timer.stop(getErrorCode(operation));
+            ConnectorMetrics.getInstance().recordPolls(0);
+            complete(future, operation);
+            return future;
+        }
+
+        pendingOperations.incrementAndGet();
+        PendingOperation pendingOperation = new PendingOperation(connector, projectId, zone, operation.getName(), future,
+                timer);
+        executorService.schedule(pendingOperation, initialDelayMillis, TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    /**
+     * Number of operations currently being polled.
+     */
+    public int getPendingOperationCount() {
+        return pendingOperations.get();
+    }
+
+    /**
+     * Blocks until the future completes, translating its failure into a {@link ConnectorException}.
+     */
+    public static <T> T await(ListenableFuture<T> future, String description) throws ConnectorException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.log(Level.WARNING, "Waiting for " + description + " interrupted", e);
+            throw new ConnectorException("Waiting for " + description + " interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            LOG.log(Level.WARNING, description + " failed", cause);
+            if (cause instanceof ConnectorException) {
+                throw (ConnectorException) cause;
+            }
+            throw new ConnectorException(description + " failed", cause);
+        }
+    }
+
+    /**
+     * Code of the first error GCE reported for the operation, or null if it succeeded.
+     */
+    private static String getErrorCode(Operation operation) {
+        if (operation.getError() == null) {
+            return null;
+        }
+        List<Operation.Error.Errors> errors = operation.getError().getErrors();
+        return errors == null || errors.isEmpty() ? "operationError" : errors.get(0).getCode();
+    }
+
+    private static void complete(SettableFuture<Operation> future, Operation operation) {
+        if (operation.getError() != null) {
+            future.setException(new ConnectorException(describeError(operation)));
+        } else {
+            future.set(operation);
+        }
+    }
+
+    static String describeError(Operation operation) {
+        StringBuilder sb = new StringBuilder("Operation ").append(operation.getName()).append(" failed");
+        List<Operation.Error.Errors> errors = operation.getError().getErrors();
+        if (errors != null) {
+            for (Operation.Error.Errors error : errors) {
+                sb.append(": ").append(error.getCode()).append(" ").append(error.getMessage());
+            }
+        }
+        return sb.toString();
+    }
+
+    private class PendingOperation implements Runnable {
+
+        private final Compute connector;
+        private final String projectId;
+        private final String zone;
+        private final String operationName;
+        private final SettableFuture<Operation> future;
+        private final long deadline;
+        private final ConnectorMetrics.Timer timer;
+
+        private long delayMillis = initialDelayMillis;
+        private int polls;
+
+        private PendingOperation(Compute connector, String projectId, String zone, String operationName,
+                                 SettableFuture<Operation> future, ConnectorMetrics.Timer timer) {
+            this.timer = timer;
+            this.connector = connector;
+            this.projectId = projectId;
+            this.zone = zone;
+            this.operationName = operationName;
+            this.future = future;
+            this.deadline = System.nanoTime() + timeoutNanos;
+        }
+
+        @Override
+        public void run() {
+            if (future.isCancelled()) {
+                finish("cancelled");
+                return;
+            }
+            polls++;
+
+            Compute.ZoneOperations.Get get;
+            try {
+                get = connector.zoneOperations().get(projectId, zone, operationName);
+            } catch (IOException e) {
+                onPollFailure(e);
+                return;
+            }
+
+            //Polls of all pending operations of a client go out together in one batch request
+            Futures.addCallback(RequestScheduler.getInstance().submit(connector, projectId,
+                    RequestScheduler.Category.OPERATION_POLL, get), new FutureCallback<Operation>() {
+                @Override
+                public void onSuccess(Operation operation) {
+                    onPollSuccess(operation);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    onPollFailure(t);
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+
+        private void onPollSuccess(Operation operation) {
+            if ("DONE".equals(operation.getStatus())) {
+                finish(getErrorCode(operation));
+                complete(future, operation);
+                return;
+            }
+            scheduleNextPoll();
+        }
+
+        private void onPollFailure(Throwable t) {
+            if (Utils.isNotFoundError(t)) {
+                finish(Utils.getErrorReason(t));
+                future.setException(new ConnectorException("Operation " + operationName + " no longer exists", t));
+                return;
+            }
+            if (!(t instanceof IOException)) {
+                finish(Utils.getErrorReason(t));
+                future.setException(t);
+                return;
+            }
+            LOG.log(Level.WARNING, "Unable to get the operation status", t);
+            scheduleNextPoll();
+        }
+
+        private void scheduleNextPoll() {
+            if (System.nanoTime() - deadline >= 0) {
+                finish("timeout");
+                future.setException(new ConnectorException("Timed out waiting for operation " + operationName));
+                return;
+            }
+
+            executorService.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+            delayMillis = Math.min(delayMillis * 2, maxDelayMillis);
+        }
+
+        private void finish(String failureReason) {
+            pendingOperations.decrementAndGet();
+            timer.stop(failureReason);
+            ConnectorMetrics.getInstance().recordPolls(polls);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.appdynamics.cloud.connectors.gce;
+
+/**
+ * Everything the {@link MachineProvisioner} needs to know to build one machine.
+ */
+public class ProvisioningRequest {
+
+    private final ServiceAccountKey serviceAccountKey;
+    private final String projectId;
+    private final String zone;
+    private final String instanceName;
+    private final String machineTypeUrl;
+    private final String networkUrl;
+    private final String sourceImageUrl;
+    private final boolean inlineBootDisk;
+    private final boolean asynchronousProvisioning;
+    private final String warmDiskName;
+    private final String bootDiskUrl;
+
+    public ProvisioningRequest(ComputeCenterConfig computeCenter, ImageConfig image,
+                               MachineDescriptorConfig machineDescriptor, String sourceImageUrl, String warmDiskName) {
+        this.serviceAccountKey = computeCenter.getServiceAccountKey();
+        this.projectId = computeCenter.getProjectId();
+        this.zone = machineDescriptor.getZone();
+        this.instanceName = machineDescriptor.getInstanceName();
+        this.machineTypeUrl = computeCenter.getMachineTypeUrl(zone, image.getMachineType());
+        this.networkUrl = computeCenter.getNetworkUrl();
+        this.sourceImageUrl = sourceImageUrl;
+        this.inlineBootDisk = computeCenter.isInlineBootDisk();
+        this.asynchronousProvisioning = computeCenter.isAsynchronousProvisioning();
+        this.warmDiskName = warmDiskName;
+        this.bootDiskUrl = computeCenter.getDiskUrl(zone, getBootDiskName());
+    }
+
+    public ServiceAccountKey getServiceAccountKey() {
+        return serviceAccountKey;
+    }
+
+    public String getProjectId() {
+        return projectId;
+    }
+
+    public String getZone() {
+        return zone;
+    }
+
+    public String getInstanceName() {
+        return instanceName;
+    }
+
+    public String getMachineTypeUrl() {
+        return machineTypeUrl;
+    }
+
+    public String getNetworkUrl() {
+        return networkUrl;
+    }
+
+    public String getSourceImageUrl() {
+        return sourceImageUrl;
+    }
+
+    /**
+     * If true the boot disk is described inside the instance insert instead of being created beforehand.
+     */
+    public boolean isInlineBootDisk() {
+        return inlineBootDisk && warmDiskName == null;
+    }
+
+    public boolean isAsynchronousProvisioning() {
+        return asynchronousProvisioning;
+    }
+
+    /**
+     * Name of the boot disk claimed from the {@link WarmDiskPool}, or null if the boot disk is built for this machine.
+     */
+    public String getWarmDiskName() {
+        return warmDiskName;
+    }
+
+    /**
+     * Name of the disk the instance boots from.
+     */
+    public String getBootDiskName() {
+        return warmDiskName != null ? warmDiskName : instanceName;
+    }
+
+    public String getBootDiskUrl() {
+        return bootDiskUrl;
+    }
+}
@@ -0,0 +1,252 @@
+package com.appdynamics.cloud.connectors.gce;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.services.compute.Compute;
+import com.google.api.services.compute.ComputeRequest;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends Compute requests submitted within a short window as one HTTP batch request per client.
+ */
+public class RequestBatcher {
+
+    public static final String MAX_BATCH_SIZE_PROPERTY_KEY = "gce.connector.batch.max.size";
+    public static final String WINDOW_MILLIS_PROPERTY_KEY = "gce.connector.batch.window.millis";
+    public static final String THREADS_PROPERTY_KEY = "gce.connector.batch.threads";
+    public static final String SENDER_THREADS_PROPERTY_KEY = "gce.connector.batch.sender.threads";
+
+    private static final int DEFAULT_MAX_BATCH_SIZE = 50;
+    private static final int DEFAULT_WINDOW_MILLIS = 100;
+    private static final int DEFAULT_THREADS = 2;
+    private static final int SENDER_KEEP_ALIVE_SECONDS = 60;
+
+    private static final Logger LOG = Logger.getLogger(RequestBatcher.class.getName());
+
+    private static final RequestBatcher INSTANCE = new RequestBatcher();
+
+    private final ConcurrentMap<Compute, PendingBatch> pendingBatches = new ConcurrentHashMap<Compute, PendingBatch>();
+
+    private final ScheduledExecutorService executorService;
+    private final ExecutorService senderService;
+
+    private final int maxBatchSize;
+    private final long windowMillis;
+
+    /**
+     * Private constructor on singleton.
+     */
+    private RequestBatcher() {
+        executorService = Executors.newScheduledThreadPool(Integer.getInteger(THREADS_PROPERTY_KEY, DEFAULT_THREADS),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("gce-request-batcher-%d").build());
+        //One sender per pooled connection, any more would only wait for a connection
+        int senderThreads = Integer.getInteger(SENDER_THREADS_PROPERTY_KEY,
+                SharedTransport.getInstance().getMaxConnections());
+        ThreadPoolExecutor senders = new ThreadPoolExecutor(senderThreads, senderThreads,
+                SENDER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("gce-request-sender-%d").build());
+        senders.allowCoreThreadTimeOut(true);
+        senderService = senders;
+        maxBatchSize = Integer.getInteger(MAX_BATCH_SIZE_PROPERTY_KEY, DEFAULT_MAX_BATCH_SIZE);
+        windowMillis = Integer.getInteger(WINDOW_MILLIS_PROPERTY_KEY, DEFAULT_WINDOW_MILLIS);
+    }
+
+    public static RequestBatcher getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Queues the request for the next batch of its client. The future completes with the parsed response
+     * or fails with the {@link IOException} for that request; a {@link BatchRequestException} carries the
+     * GCE error details when the request itself was rejected.
+     */
+    public <T> ListenableFuture<T> submit(Compute connector, ComputeRequest<T> request) {
+        return submit(connector, request, false);
+    }
+
+    /**
+     * Queues the request like {@link #submit(Compute, ComputeRequest)}, but when flush is set sends it together with
+     * whatever is already queued for its client right away, for a caller blocked on the response.
+     */
+    public <T> ListenableFuture<T> submit(Compute connector, ComputeRequest<T> request, boolean flush) {
+        PendingBatch pendingBatch = pendingBatches.get(connector);
+        if (pendingBatch == null) {
+            PendingBatch newBatch = new PendingBatch(connector);
+            pendingBatch = pendingBatches.putIfAbsent(connector, newBatch);
+            if (pendingBatch == null) {
+                pendingBatch = newBatch;
+            }
+        }
+
+        Entry<T> entry = new Entry<T>(request);
+        pendingBatch.add(entry, flush);
+        return entry.future;
+    }
+
+    /**
+     * Sends the request on its own rather than in a batch, completing the future with the response as it arrives so
+     * the caller can parse it while it streams in. The caller must consume or ignore the response.
+     */
+    public ListenableFuture<HttpResponse> submitUnparsed(final ComputeRequest<?> request) {
+        final SettableFuture<HttpResponse> future = SettableFuture.create();
+        senderService.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.set(request.executeUnparsed());
+                } catch (IOException e) {
+                    future.setException(e);
+                } catch (RuntimeException e) {
+                    future.setException(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Drops the queue of a client that is no longer used.
+     */
+    public void forget(Compute connector) {
+        pendingBatches.remove(connector);
+    }
+
+    private class PendingBatch implements Runnable {
+
+        private final Compute connector;
+        private final ConcurrentLinkedQueue<Entry<?>> entries = new ConcurrentLinkedQueue<Entry<?>>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        private PendingBatch(Compute connector) {
+            this.connector = connector;
+        }
+
+        private void add(Entry<?> entry, boolean flush) {
+            entries.add(entry);
+            if (flush) {
+                executorService.execute(this);
+            } else if (scheduled.compareAndSet(false, true)) {
+                executorService.schedule(this, windowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                List<Entry<?>> batch = new ArrayList<Entry<?>>(maxBatchSize);
+                Entry<?> entry;
+                while ((entry = entries.poll()) != null) {
+                    batch.add(entry);
+                    if (batch.size() == maxBatchSize) {
+                        send(batch);
+                        batch = new ArrayList<Entry<?>>(maxBatchSize);
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    send(batch);
+                }
+            } finally {
+                scheduled.set(false);
+                if (!entries.isEmpty() && scheduled.compareAndSet(false, true)) {
+                    executorService.execute(this);
+                }
+            }
+        }
+
+        private void send(final List<Entry<?>> batch) {
+            senderService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    execute(batch);
+                }
+            });
+        }
+
+        private void execute(List<Entry<?>> batch) {
+            if (batch.size() == 1) {
+                batch.get(0).execute();
+                return;
+            }
+
+            BatchRequest batchRequest = connector.batch();
+            List<Entry<?>> queued = new ArrayList<Entry<?>>(batch.size());
+            for (Entry<?> entry : batch) {
+                try {
+                    entry.queue(batchRequest);
+                    queued.add(entry);
+                } catch (IOException e) {
+                    entry.future.setException(e);
+                } catch (RuntimeException e) {
+                    entry.future.setException(e);
+                }
+            }
+
+            try {
+                batchRequest.execute();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Unable to execute batch of " + queued.size() + " requests", e);
+                for (Entry<?> entry : queued) {
+                    entry.future.setException(e);
+                }
+            } catch (RuntimeException e) {
+                for (Entry<?> entry : queued) {
+                    entry.future.setException(e);
+                }
+            }
+        }
+    }
+
+    private static class Entry<T> {
+
+        private final ComputeRequest<T> request;
+        private final SettableFuture<T> future = SettableFuture.create();
+
+        private Entry(ComputeRequest<T> request) {
+            this.request = request;
+        }
+
+        private void execute() {
+            try {
+                future.set(request.execute());
+            } catch (IOException e) {
+                future.setException(e);
+            } catch (RuntimeException e) {
+                future.setException(e);
+            }
+        }
+
+        private void queue(BatchRequest batchRequest) throws IOException {
+            request.queue(batchRequest, new JsonBatchCallback<T>() {
+                @Override
+                public void onSuccess(T response, HttpHeaders responseHeaders) {
+                    future.set(response);
+                }
+
+                @Override
+                public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+                    future.setException(new BatchRequestException(error));
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,499 @@
+package com.appdynamics.cloud.connectors.gce;
+
+import com.google.api.client.http.HttpResponse;
+import com.google.api.services.compute.Compute;
+import com.google.api.services.compute.ComputeRequest;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Paces Compute calls against the rate quotas of their project and retries the ones GCE throttles.
+ */
+public class RequestScheduler {
+
+    public static final String PROJECT_RATE_PROPERTY_KEY = "gce.connector.quota.project.per.second";
+    public static final String MUTATION_RATE_PROPERTY_KEY = "gce.connector.quota.mutations.per.second";
+    public static final String READ_RATE_PROPERTY_KEY = "gce.connector.quota.reads.per.second";
+    public static final String POLL_RATE_PROPERTY_KEY = "gce.connector.quota.polls.per.second";
+    public static final String BURST_SECONDS_PROPERTY_KEY = "gce.connector.quota.burst.seconds";
+    public static final String MAX_ATTEMPTS_PROPERTY_KEY = "gce.connector.retry.max.attempts";
+    public static final String INITIAL_BACKOFF_MILLIS_PROPERTY_KEY = "gce.connector.retry.initial.backoff.millis";
+    public static final String MAX_BACKOFF_MILLIS_PROPERTY_KEY = "gce.connector.retry.max.backoff.millis";
+
+    private static final int DEFAULT_PROJECT_RATE = 20;
+    private static final int DEFAULT_MUTATION_RATE = 10;
+    private static final int DEFAULT_READ_RATE = 20;
+    private static final int DEFAULT_POLL_RATE = 20;
+    private static final int DEFAULT_BURST_SECONDS = 2;
+    private static final int DEFAULT_MAX_ATTEMPTS = 6;
+    private static final int DEFAULT_INITIAL_BACKOFF_MILLIS = 1000;
+    private static final int DEFAULT_MAX_BACKOFF_MILLIS = 32000;
+
+    private static final Logger LOG = Logger.getLogger(RequestScheduler.class.getName());
+
+    private static final RequestScheduler INSTANCE = new RequestScheduler();
+
+    /**
+     * Kind of call, in priority order.
+     */
+    public enum Category {
+        /**
+         * Creates and deletes. Retried only when rejected by a rate quota, as a failed insert may have been applied.
+         */
+        MUTATION(MUTATION_RATE_PROPERTY_KEY, DEFAULT_MUTATION_RATE),
+        READ(READ_RATE_PROPERTY_KEY, DEFAULT_READ_RATE),
+        OPERATION_POLL(POLL_RATE_PROPERTY_KEY, DEFAULT_POLL_RATE);
+
+        private final String ratePropertyKey;
+        private final int defaultRate;
+
+        Category(String ratePropertyKey, int defaultRate) {
+            this.ratePropertyKey = ratePropertyKey;
+            this.defaultRate = defaultRate;
+        }
+    }
+
+    private final ConcurrentMap<String, ProjectLane> lanes = new ConcurrentHashMap<String, ProjectLane>();
+
+    //Dispatching happens on this single thread, which also owns the buckets
+    private final ScheduledExecutorService executorService;
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private long nextWakeupNanos = Long.MAX_VALUE;
+
+    private final Random random = new Random();
+
+    private final int projectRate;
+    private final int[] categoryRates = new int[Category.values().length];
+    private final int burstSeconds;
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+
+    /**
+     * Private constructor on singleton.
+     */
+    private RequestScheduler() {
+        executorService = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("gce-request-scheduler-%d").build());
+        projectRate = Integer.getInteger(PROJECT_RATE_PROPERTY_KEY, DEFAULT_PROJECT_RATE);
+        for (Category category : Category.values()) {
+            categoryRates[category.ordinal()] = Integer.getInteger(category.ratePropertyKey, category.defaultRate);
+        }
+        burstSeconds = Integer.getInteger(BURST_SECONDS_PROPERTY_KEY, DEFAULT_BURST_SECONDS);
+        maxAttempts = Integer.getInteger(MAX_ATTEMPTS_PROPERTY_KEY, DEFAULT_MAX_ATTEMPTS);
+        initialBackoffMillis = Integer.getInteger(INITIAL_BACKOFF_MILLIS_PROPERTY_KEY, DEFAULT_INITIAL_BACKOFF_MILLIS);
+        maxBackoffMillis = Integer.getInteger(MAX_BACKOFF_MILLIS_PROPERTY_KEY, DEFAULT_MAX_BACKOFF_MILLIS);
+    }
+
+    public static RequestScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Queues the call against the quota of the project. The future completes as the one returned by
+     * {@link RequestBatcher#submit} for the last attempt.
+     */
+    public <T> ListenableFuture<T> submit(Compute connector, String projectId, Category category,
+                                          ComputeRequest<T> request) {
+        return submit(connector, projectId, category, request, false);
+    }
+
+    /**
+     * Builds the list request of one page.
+     */
+    public interface PageRequestFactory {
+        ComputeRequest<?> create(String pageToken) throws IOException;
+    }
+
+    /**
+     * Queues one page of a list call against the quota of the project. Its items are handed to the handler as they
+     * are parsed off the response, on the thread which received it, and the future completes with the token of the
+     * next page, or null on the last page.
+     */
+    public <E> ListenableFuture<String> submitList(Compute connector, String projectId, Category category,
+                                                   ComputeRequest<?> request, final Class<E> itemClass,
+                                                   final RequestShaper.ItemHandler<E> handler) {
+        RequestShaper.shape(request);
+        Call<HttpResponse> call = new Call<HttpResponse>(connector, projectId, category, request, true, false);
+        enqueue(call);
+
+        final SettableFuture<String> nextPageToken = SettableFuture.create();
+        Futures.addCallback(call.future, new FutureCallback<HttpResponse>() {
+            @Override
+            public void onSuccess(HttpResponse response) {
+                try {
+                    nextPageToken.set(RequestShaper.parseListPage(response, itemClass, handler));
+                } catch (IOException e) {
+                    nextPageToken.setException(e);
+                } catch (RuntimeException e) {
+                    nextPageToken.setException(e);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                nextPageToken.setException(t);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return nextPageToken;
+    }
+
+    /**
+     * Queues the pages of a list call one after the other, without holding a thread between them. The future
+     * completes once the handler has seen the items of the last page, or fails with the first failed page.
+     */
+    public <E> ListenableFuture<Void> submitListAll(Compute connector, String projectId, Category category,
+                                                    PageRequestFactory pages, Class<E> itemClass,
+                                                    RequestShaper.ItemHandler<E> handler) {
+        SettableFuture<Void> result = SettableFuture.create();
+        submitPage(connector, projectId, category, pages, null, itemClass, handler, result);
+        return result;
+    }
+
+    /**
+     * Sends one page of a list call once the quota of the project allows it and waits for its items to be handed
+     * to the handler. Returns the token of the next page, or null on the last page.
+     */
+    public <E> String executeList(Compute connector, String projectId, Category category, ComputeRequest<?> request,
+                                  Class<E> itemClass, RequestShaper.ItemHandler<E> handler) throws IOException {
+        return await(submitList(connector, projectId, category, request, itemClass, handler), request);
+    }
+
+    /**
+     * Sends the call once the quota of the project allows it and waits for its response. The call does not wait
+     * out the batching window.
+     */
+    public <T> T execute(Compute connector, String projectId, Category category, ComputeRequest<T> request)
+            throws IOException {
+        return await(submit(connector, projectId, category, request, true), request);
+    }
+
+    private <T> ListenableFuture<T> submit(Compute connector, String projectId, Category category,
+                                           ComputeRequest<T> request, boolean blocking) {
+        RequestShaper.shape(request);
+        Call<T> call = new Call<T>(connector, projectId, category, request, false, blocking);
+        enqueue(call);
+        return call.future;
+    }
+
+    private <E> void submitPage(final Compute connector, final String projectId, final Category category,
+                                final PageRequestFactory pages, String pageToken, final Class<E> itemClass,
+                                final RequestShaper.ItemHandler<E> handler, final SettableFuture<Void> result) {
+        ListenableFuture<String> page;
+        try {
+            page = submitList(connector, projectId, category, pages.create(pageToken), itemClass, handler);
+        } catch (IOException e) {
+            result.setException(e);
+            return;
+        }
+        Futures.addCallback(page, new FutureCallback<String>() {
+            @Override
+            public void onSuccess(String nextPageToken) {
+                if (nextPageToken == null) {
+                    result.set(null);
+                } else {
+                    submitPage(connector, projectId, category, pages, nextPageToken, itemClass, handler, result);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                result.setException(t);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    private static <T> T await(ListenableFuture<T> future, ComputeRequest<?> request) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + request.getClass().getSimpleName(), e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Number of calls waiting for a token.
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    public int getQueueDepth(Category category) {
+        int depth = 0;
+        for (ProjectLane lane : lanes.values()) {
+            depth += lane.queues[category.ordinal()].size();
+        }
+        return depth;
+    }
+
+    public long getDispatchedCount() {
+        return dispatched.get();
+    }
+
+    /**
+     * Number of calls which had to wait for a token.
+     */
+    public long getThrottledCount() {
+        return throttled.get();
+    }
+
+    /**
+     * Number of responses rejecting a call for exceeding a rate quota.
+     */
+    public long getRateLimitedCount() {
+        return rateLimited.get();
+    }
+
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    private void enqueue(Call<?> call) {
+        ProjectLane lane = lanes.get(call.projectId);
+        if (lane == null) {
+            ProjectLane newLane = new ProjectLane();
+            lane = lanes.putIfAbsent(call.projectId, newLane);
+            if (lane == null) {
+                lane = newLane;
+            }
+        }
+        lane.queues[call.category.ordinal()].add(call);
+        queueDepth.incrementAndGet();
+
+        if (drainScheduled.compareAndSet(false, true)) {
+            executorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        }
+    }
+
+    private void drain() {
+        drainScheduled.set(false);
+        long now = System.nanoTime();
+        long waitNanos = Long.MAX_VALUE;
+
+        for (ProjectLane lane : lanes.values()) {
+            for (Category category : Category.values()) {
+                Queue<Call<?>> queue = lane.queues[category.ordinal()];
+                TokenBucket bucket = lane.buckets[category.ordinal()];
+                Call<?> call;
+                while ((call = queue.peek()) != null) {
+                    long projectWait = lane.projectBucket.nanosUntilAvailable(now);
+                    long categoryWait = bucket.nanosUntilAvailable(now);
+                    if (projectWait > 0 || categoryWait > 0) {
+                        waitNanos = Math.min(waitNanos, Math.max(projectWait, categoryWait));
+                        if (!call.throttled) {
+                            call.throttled = true;
+                            throttled.incrementAndGet();
+                        }
+                        break;
+                    }
+                    lane.projectBucket.take();
+                    bucket.take();
+                    queue.poll();
+                    queueDepth.decrementAndGet();
+                    dispatch(call);
+                }
+            }
+        }
+
+        if (waitNanos != Long.MAX_VALUE) {
+            scheduleWakeup(now, waitNanos);
+        }
+    }
+
+    private void scheduleWakeup(long now, long waitNanos) {
+        long wakeup = now + waitNanos;
+        if (nextWakeupNanos != Long.MAX_VALUE && nextWakeupNanos - now > 0 && nextWakeupNanos - wakeup <= 0) {
+            //An earlier wakeup is already scheduled
+            return;
+        }
+        nextWakeupNanos = wakeup;
+        executorService.schedule(new Runnable() {
+            @Override
+            public void run() {
+                nextWakeupNanos = Long.MAX_VALUE;
+                drain();
+            }
+        }, waitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> void dispatch(final Call<T> call) {
+        dispatched.incrementAndGet();
+        RequestBatcher batcher = RequestBatcher.getInstance();
+        //An unparsed call is a Call<HttpResponse>, any other is answered with the response type of its request
+        ListenableFuture<T> response = call.unparsed
+                ? (ListenableFuture<T>) batcher.submitUnparsed(call.request)
+                : batcher.submit(call.connector, (ComputeRequest<T>) call.request, call.blocking);
+        Futures.addCallback(response, new FutureCallback<T>() {
+            @Override
+            public void onSuccess(T response) {
+                call.future.set(response);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                onCallFailure(call, t);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    private void onCallFailure(final Call<?> call, Throwable t) {
+        boolean rateLimitError = Utils.isRateLimitError(t);
+        if (rateLimitError) {
+            rateLimited.incrementAndGet();
+            final ProjectLane lane = lanes.get(call.projectId);
+            executorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    lane.projectBucket.empty();
+                    lane.buckets[call.category.ordinal()].empty();
+                }
+            });
+        }
+
+        boolean retryable = rateLimitError || (call.category != Category.MUTATION && Utils.isServerError(t));
+        call.attempt++;
+        if (!retryable || call.attempt >= maxAttempts || call.future.isCancelled()) {
+            call.future.setException(t);
+            return;
+        }
+
+        retries.incrementAndGet();
+        long backoff = backoff(call.attempt);
+        LOG.log(Level.FINE, "Retrying " + call.request.getClass().getSimpleName() + " of project " + call.projectId +
+                " in " + backoff + " ms", t);
+        executorService.schedule(new Runnable() {
+            @Override
+            public void run() {
+                enqueue(call);
+            }
+        }, backoff, TimeUnit.MILLISECONDS);
+    }
+
+    private long backoff(int attempt) {
+        long backoff = Math.min(initialBackoffMillis << Math.min(attempt - 1, 20), maxBackoffMillis);
+        //Jitter keeps calls throttled together from coming back together
+        synchronized (random) {
+            return backoff / 2 + (long) (random.nextDouble() * backoff / 2);
+        }
+    }
+
+    private class ProjectLane {
+
+        @SuppressWarnings("unchecked")
+        private final Queue<Call<?>>[] queues = (Queue<Call<?>>[]) new Queue<?>[Category.values().length];
+        private final TokenBucket[] buckets = new TokenBucket[Category.values().length];
+        private final TokenBucket projectBucket = new TokenBucket(projectRate, projectRate * burstSeconds);
+
+        private ProjectLane() {
+            for (Category category : Category.values()) {
+                int rate = categoryRates[category.ordinal()];
+                queues[category.ordinal()] = new ConcurrentLinkedQueue<Call<?>>();
+                buckets[category.ordinal()] = new TokenBucket(rate, rate * burstSeconds);
+            }
+        }
+    }
+
+    /**
+     * Token bucket refilled continuously at a fixed rate. Only used from the scheduler thread.
+     */
+    private static class TokenBucket {
+
+        private final double tokensPerNano;
+        private final double capacity;
+
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        private TokenBucket(int tokensPerSecond, int capacity) {
+            this.tokensPerNano = tokensPerSecond / (double) TimeUnit.SECONDS.toNanos(1);
+            this.capacity = Math.max(capacity, 1);
+            this.tokens = this.capacity;
+        }
+
+        private long nanosUntilAvailable(long now) {
+            refill(now);
+            return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / tokensPerNano);
+        }
+
+        private void take() {
+            tokens -= 1;
+        }
+
+        private void empty() {
+            tokens = Math.min(tokens, 0);
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+            lastRefill = now;
+        }
+    }
+
+    private static class Call<T> {
+
+        private final Compute connector;
+        private final String projectId;
+        private final Category category;
+        private final ComputeRequest<?> request;
+        private final boolean unparsed;
+        private final boolean blocking;
+        private final SettableFuture<T> future = SettableFuture.create();
+
+        private volatile int attempt;
+        private volatile boolean throttled;
+
+        private Call(Compute connector, String projectId, Category category, ComputeRequest<?> request,
+                     boolean unparsed, boolean blocking) {
+            this.connector = connector;
+            this.projectId = projectId;
+            this.category = category;
+            this.request = request;
+            this.unparsed = unparsed;
+            this.blocking = blocking;
+        }
+    }
+}
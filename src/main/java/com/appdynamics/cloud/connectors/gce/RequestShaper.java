@@ -0,0 +1,98 @@
+package com.appdynamics.cloud.connectors.gce;
+
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.json.JsonParser;
+import com.google.api.client.json.JsonToken;
+import com.google.api.services.compute.ComputeRequest;
+import com.google.api.services.compute.model.DiskList;
+import com.google.api.services.compute.model.ImageList;
+import com.google.api.services.compute.model.Instance;
+import com.google.api.services.compute.model.InstanceList;
+import com.google.api.services.compute.model.Operation;
+import com.google.api.services.compute.model.OperationList;
+import com.google.api.services.compute.model.Project;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Trims Compute responses with field masks and parses list pages item by item off the stream.
+ */
+public final class RequestShaper {
+
+    /**
+     * Fields of an instance read when refreshing a machine.
+     */
+    public static final String INSTANCE_FIELDS = "name,status,creationTimestamp,networkInterfaces/accessConfigs/natIP";
+
+    /**
+     * Fields of an operation read when waiting for it or following the changes of a zone.
+     */
+    public static final String OPERATION_FIELDS = "name,zone,operationType,targetLink,status,endTime,error";
+
+    private static final Map<Class<?>, String> FIELDS = new HashMap<Class<?>, String>();
+
+    static {
+        FIELDS.put(Instance.class, INSTANCE_FIELDS);
+        FIELDS.put(InstanceList.class, "items(" + INSTANCE_FIELDS + "),nextPageToken");
+        FIELDS.put(Operation.class, OPERATION_FIELDS);
+        FIELDS.put(OperationList.class, "items(" + OPERATION_FIELDS + "),nextPageToken");
+        FIELDS.put(DiskList.class, "items(name,description,creationTimestamp),nextPageToken");
+        FIELDS.put(ImageList.class, "items(name,selfLink,creationTimestamp,deprecated/state),nextPageToken");
+        FIELDS.put(Project.class, "name");
+    }
+
+    /**
+     * Handles the items of a list page one at a time.
+     */
+    public interface ItemHandler<E> {
+        void handle(E item);
+    }
+
+    private RequestShaper() {
+    }
+
+    /**
+     * Sets the field mask for the type of resource the request returns, unless the request already has one.
+     */
+    public static void shape(ComputeRequest<?> request) {
+        if (request.getFields() == null) {
+            String fields = FIELDS.get(request.getResponseClass());
+            if (fields != null) {
+                request.setFields(fields);
+            }
+        }
+    }
+
+    /**
+     * Parses a list page from the response stream, handing each item to the handler as soon as it is read instead
+     * of building the whole page first. Returns the token of the next page, or null on the last page.
+     */
+    public static <E> String parseListPage(HttpResponse response, Class<E> itemClass, ItemHandler<E> handler)
+            throws IOException {
+        String nextPageToken = null;
+        try {
+            JsonParser parser = SharedTransport.getInstance().getJsonFactory().createJsonParser(
+                    response.getContent(), response.getContentCharset());
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected a list page but got " + parser.getCurrentToken());
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("items".equals(name) && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        handler.handle(parser.parse(itemClass));
+                    }
+                } else if ("nextPageToken".equals(name)) {
+                    nextPageToken = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } finally {
+            response.ignore();
+        }
+        return nextPageToken;
+    }
+}
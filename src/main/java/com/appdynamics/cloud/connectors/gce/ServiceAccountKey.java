@@ -0,0 +1,48 @@
+package com.appdynamics.cloud.connectors.gce;
+
+import com.google.common.base.Objects;
+
+/**
+ * Identifies a service account together with the P12 key file used to sign in as it.
+ */
+public final class ServiceAccountKey {
+
+    private final String serviceAccountId;
+    private final String serviceAccountP12FilePath;
+
+    public ServiceAccountKey(String serviceAccountId, String serviceAccountP12FilePath) {
+        this.serviceAccountId = serviceAccountId;
+        this.serviceAccountP12FilePath = serviceAccountP12FilePath;
+    }
+
+    public String getServiceAccountId() {
+        return serviceAccountId;
+    }
+
+    public String getServiceAccountP12FilePath() {
+        return serviceAccountP12FilePath;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ServiceAccountKey)) {
+            return false;
+        }
+        ServiceAccountKey that = (ServiceAccountKey) o;
+        return Objects.equal(serviceAccountId, that.serviceAccountId)
+                && Objects.equal(serviceAccountP12FilePath, that.serviceAccountP12FilePath);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(serviceAccountId, serviceAccountP12FilePath);
+    }
+
+    @Override
+    public String toString() {
+        return serviceAccountId;
+    }
+}
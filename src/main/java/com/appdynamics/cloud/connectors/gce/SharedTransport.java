@@ -0,0 +1,150 @@
+package com.appdynamics.cloud.connectors.gce;
+
+import com.google.api.client.googleapis.GoogleUtils;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.net.ProxySelector;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.ProxySelectorRoutePlanner;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+/**
+ * Process wide HTTP transport and JSON factory shared by every Compute client.
+ */
+public class SharedTransport {
+
+    public static final String MAX_CONNECTIONS_PROPERTY_KEY = "gce.connector.http.max.connections";
+    public static final String MAX_CONNECTIONS_PER_ROUTE_PROPERTY_KEY = "gce.connector.http.max.connections.per.route";
+    public static final String IDLE_TIMEOUT_SECONDS_PROPERTY_KEY = "gce.connector.http.idle.timeout.seconds";
+
+    private static final int DEFAULT_MAX_CONNECTIONS = 100;
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 50;
+    private static final int DEFAULT_IDLE_TIMEOUT_SECONDS = 60;
+
+    private static final Logger LOG = Logger.getLogger(SharedTransport.class.getName());
+
+    private static final SharedTransport INSTANCE = new SharedTransport();
+
+    private final JacksonFactory jsonFactory = new JacksonFactory();
+
+    private final int maxConnections;
+    private final int maxConnectionsPerRoute;
+
+    private volatile ThreadSafeClientConnManager connectionManager;
+    private volatile HttpTransport transport;
+
+    /**
+     * Private constructor on singleton.
+     */
+    private SharedTransport() {
+        maxConnections = Integer.getInteger(MAX_CONNECTIONS_PROPERTY_KEY, DEFAULT_MAX_CONNECTIONS);
+        maxConnectionsPerRoute = Integer.getInteger(MAX_CONNECTIONS_PER_ROUTE_PROPERTY_KEY, DEFAULT_MAX_CONNECTIONS_PER_ROUTE);
+    }
+
+    public static SharedTransport getInstance() {
+        return INSTANCE;
+    }
+
+    public JacksonFactory getJsonFactory() {
+        return jsonFactory;
+    }
+
+    /**
+     * Returns the shared transport, building it on first use.
+     */
+    public HttpTransport getTransport() throws GeneralSecurityException, IOException {
+        HttpTransport result = transport;
+        if (result == null) {
+            synchronized (this) {
+                result = transport;
+                if (result == null) {
+                    transport = result = createTransport();
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Replaces the transport every client is built with by one this class does not pool, such as an in-process
+     * fake of the Compute API. Only clients built afterwards use it, and the pool statistics then read zero.
+     */
+    synchronized void setTransport(HttpTransport transport) {
+        this.transport = transport;
+        connectionManager = null;
+    }
+
+    /**
+     * Number of connections currently held by the pool, leased or idle.
+     */
+    public int getConnectionsInPool() {
+        ThreadSafeClientConnManager manager = connectionManager;
+        return manager == null ? 0 : manager.getConnectionsInPool();
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    private HttpTransport createTransport() throws GeneralSecurityException, IOException {
+        HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setStaleCheckingEnabled(params, false);
+        HttpConnectionParams.setSocketBufferSize(params, 8192);
+        ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnectionsPerRoute));
+
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        registry.register(new Scheme("https", new SSLSocketFactory(GoogleUtils.getCertificateTrustStore()), 443));
+
+        ThreadSafeClientConnManager manager = new ThreadSafeClientConnManager(params, registry);
+        DefaultHttpClient httpClient = new DefaultHttpClient(manager, params);
+        //Retries are the business of the google client, not of the connection layer
+        httpClient.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
+        httpClient.setRoutePlanner(new ProxySelectorRoutePlanner(registry, ProxySelector.getDefault()));
+
+        startIdleConnectionReaper(manager);
+        connectionManager = manager;
+        return new ApacheHttpTransport(httpClient);
+    }
+
+    private void startIdleConnectionReaper(final ThreadSafeClientConnManager manager) {
+        final long idleTimeoutSeconds = Integer.getInteger(IDLE_TIMEOUT_SECONDS_PROPERTY_KEY, DEFAULT_IDLE_TIMEOUT_SECONDS);
+        ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("gce-http-idle-reaper-%d").build());
+        executorService.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    manager.closeExpiredConnections();
+                    manager.closeIdleConnections(idleTimeoutSeconds, TimeUnit.SECONDS);
+                } catch (RuntimeException e) {
+                    LOG.log(Level.WARNING, "Unable to close idle connections", e);
+                }
+            }
+        }, idleTimeoutSeconds, idleTimeoutSeconds, TimeUnit.SECONDS);
+    }
+}
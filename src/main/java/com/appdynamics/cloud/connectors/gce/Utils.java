@@ -1,7 +1,7 @@
 package com.appdynamics.cloud.connectors.gce;
 
-import com.singularity.ee.connectors.api.IControllerServices;
-import com.singularity.ee.connectors.entity.api.IProperty;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 
 public class Utils {
 
@@ -17,31 +17,97 @@ public class Utils {
     public static final String MACHINE_TYPE_KEY_PROP = "Machine Type";
     public static final String IMAGE_KEY_PROP = "Image";
 
-    public static String getServiceAccountId(IProperty[] properties, IControllerServices controllerServices) {
-        return controllerServices.getStringPropertyValueByName(properties, SERVICE_ACCOUNT_KEY_PROP);
+    public static final String ASYNCHRONOUS_PROVISIONING_KEY_PROP = "Asynchronous Provisioning";
+    public static final String INLINE_BOOT_DISK_KEY_PROP = "Inline Boot Disk";
+    public static final String WARM_DISK_MAX_AGE_KEY_PROP = "Warm Disk Max Age";
+
+    public static final String WARM_POOL_SIZE_KEY_PROP = "Warm Pool Size";
+
+    /**
+     * Returns true if GCE rejected the request because the credentials are no longer accepted.
+     */
+    public static boolean isAuthorizationError(Throwable e) {
+        int statusCode = getStatusCode(e);
+        return statusCode == 401 || (statusCode == 403 && !isRateLimitError(e));
+    }
+
+    /**
+     * Returns true if GCE rejected the request because a rate quota of the project was exceeded.
+     */
+    public static boolean isRateLimitError(Throwable e) {
+        int statusCode = getStatusCode(e);
+        if (statusCode == 429) {
+            return true;
+        }
+        String reason = getReason(e);
+        return statusCode == 403 && ("rateLimitExceeded".equals(reason) || "userRateLimitExceeded".equals(reason));
     }
 
-    public static String getServiceAccountP12File(IProperty[] properties, IControllerServices controllerServices) {
-        return controllerServices.getStringPropertyValueByName(properties, SERVICE_ACCOUNT_P12_FILE_KEY_PROP);
+    /**
+     * Returns true if GCE failed the request on its side.
+     */
+    public static boolean isServerError(Throwable e) {
+        int statusCode = getStatusCode(e);
+        return statusCode >= 500 && statusCode < 600;
     }
 
-    public static String getProjectId(IProperty[] properties, IControllerServices controllerServices) {
-        return controllerServices.getStringPropertyValueByName(properties, PROJECT_ID_KEY_PROP);
+    /**
+     * Returns true if GCE reported that the requested resource does not exist.
+     */
+    public static boolean isNotFoundError(Throwable e) {
+        String reason = getReason(e);
+        if (reason != null) {
+            return "notFound".equals(reason);
+        }
+        return getStatusCode(e) == 404;
     }
 
-    public static String getZone(IProperty[] properties, IControllerServices controllerServices) {
-        return controllerServices.getStringPropertyValueByName(properties, ZONE_KEY_PROP);
+    /**
+     * Short name of what went wrong, for counting errors: the GCE error reason when there is one, else the HTTP
+     * status, else the exception type.
+     */
+    public static String getErrorReason(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            String reason = getReason(cause);
+            if (reason != null) {
+                return reason;
+            }
+            int statusCode = getStatusCode(cause);
+            if (statusCode > 0) {
+                return "http" + statusCode;
+            }
+        }
+        return e.getClass().getSimpleName();
     }
 
-    public static String getInstanceName(IProperty[] properties, IControllerServices controllerServices) {
-        return controllerServices.getStringPropertyValueByName(properties, INSTANCE_NAME_KEY_PROP);
+    /**
+     * Returns the error details GCE sent back for a failed request, whether it was sent alone or in a batch.
+     */
+    public static GoogleJsonError getErrorDetails(Throwable e) {
+        if (e instanceof GoogleJsonResponseException) {
+            return ((GoogleJsonResponseException) e).getDetails();
+        }
+        if (e instanceof BatchRequestException) {
+            return ((BatchRequestException) e).getDetails();
+        }
+        return null;
     }
 
-    public static String getMachineType(IProperty[] properties, IControllerServices controllerServices) {
-        return controllerServices.getStringPropertyValueByName(properties, MACHINE_TYPE_KEY_PROP);
+    private static String getReason(Throwable e) {
+        GoogleJsonError details = getErrorDetails(e);
+        if (details != null && details.getErrors() != null && !details.getErrors().isEmpty()) {
+            return details.getErrors().get(0).getReason();
+        }
+        return null;
     }
 
-    public static String getImage(IProperty[] properties, IControllerServices controllerServices) {
-        return controllerServices.getStringPropertyValueByName(properties, IMAGE_KEY_PROP);
+    private static int getStatusCode(Throwable e) {
+        if (e instanceof GoogleJsonResponseException) {
+            return ((GoogleJsonResponseException) e).getStatusCode();
+        }
+        if (e instanceof BatchRequestException) {
+            return ((BatchRequestException) e).getDetails().getCode();
+        }
+        return -1;
     }
 }
@@ -0,0 +1,185 @@
+package com.appdynamics.cloud.connectors.gce;
+
+import com.google.api.client.auth.oauth2.TokenResponseException;
+import com.google.api.services.compute.Compute;
+import com.google.common.base.Objects;
+import com.google.common.util.concurrent.SettableFuture;
+import com.singularity.ee.connectors.api.ConnectorException;
+import com.singularity.ee.connectors.api.InvalidObjectException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caches the outcome of validating a service account against a project; definitive failures for a shorter TTL.
+ */
+public class ValidationCache {
+
+    public static final String TTL_SECONDS_PROPERTY_KEY = "gce.connector.validation.ttl.seconds";
+    public static final String NEGATIVE_TTL_SECONDS_PROPERTY_KEY = "gce.connector.validation.negative.ttl.seconds";
+
+    private static final int DEFAULT_TTL_SECONDS = 300;
+    private static final int DEFAULT_NEGATIVE_TTL_SECONDS = 30;
+
+    private static final String INVALID_MESSAGE = "The specified " + Utils.SERVICE_ACCOUNT_KEY_PROP +
+            " and/or " + Utils.SERVICE_ACCOUNT_P12_FILE_KEY_PROP + " is not valid.";
+
+    private static final Logger LOG = Logger.getLogger(ValidationCache.class.getName());
+
+    private final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+    private final ConcurrentMap<Key, SettableFuture<Entry>> inFlight = new ConcurrentHashMap<Key, SettableFuture<Entry>>();
+
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+
+    public ValidationCache() {
+        this(Integer.getInteger(TTL_SECONDS_PROPERTY_KEY, DEFAULT_TTL_SECONDS),
+                Integer.getInteger(NEGATIVE_TTL_SECONDS_PROPERTY_KEY, DEFAULT_NEGATIVE_TTL_SECONDS));
+    }
+
+    public ValidationCache(int ttlSeconds, int negativeTtlSeconds) {
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.negativeTtlNanos = TimeUnit.SECONDS.toNanos(negativeTtlSeconds);
+    }
+
+    /**
+     * Validates the credentials against the project, answering from the cache while the previous result is fresh.
+     * Once it has expired the first caller validates again while concurrent callers for the same key wait for it.
+     */
+    public void validate(Compute compute, String serviceAccountId, String serviceAccountP12FilePath, String projectId)
+            throws InvalidObjectException, ConnectorException {
+        Key key = new Key(serviceAccountId, serviceAccountP12FilePath, projectId);
+
+        Entry entry = entries.get(key);
+        if (entry == null || System.nanoTime() - entry.expiresAt >= 0) {
+            SettableFuture<Entry> validation = inFlight.get(key);
+            if (validation == null) {
+                SettableFuture<Entry> newValidation = SettableFuture.create();
+                validation = inFlight.putIfAbsent(key, newValidation);
+                if (validation == null) {
+                    validation = newValidation;
+                    load(compute, key, newValidation);
+                }
+            }
+            entry = await(validation, projectId);
+        }
+        if (entry.failure != null) {
+            throw new InvalidObjectException(INVALID_MESSAGE, entry.failure);
+        }
+    }
+
+    private void load(Compute compute, Key key, SettableFuture<Entry> validation) {
+        String projectId = key.projectId;
+        ConnectorMetrics.Timer timer = ConnectorMetrics.getInstance().start(ConnectorMetrics.Step.VALIDATION);
+        try {
+            RequestScheduler.getInstance().execute(compute, projectId, RequestScheduler.Category.READ,
+                    compute.projects().get(projectId));
+            timer.stop();
+            put(key, new Entry(System.nanoTime() + ttlNanos, null), validation);
+        } catch (Exception e) {
+            timer.stop(e);
+            if (!isDefinitive(e)) {
+                //Not cached, the next caller validates again
+                LOG.log(Level.WARNING, "Unable to validate the credentials of project " + projectId, e);
+                inFlight.remove(key, validation);
+                validation.setException(new ConnectorException("Unable to validate the credentials of project " +
+                        projectId, e));
+                return;
+            }
+            LOG.log(Level.WARNING, INVALID_MESSAGE, e);
+            put(key, new Entry(System.nanoTime() + negativeTtlNanos, e), validation);
+        } catch (Error e) {
+            timer.stop(e);
+            inFlight.remove(key, validation);
+            validation.setException(e);
+            throw e;
+        }
+    }
+
+    private void put(Key key, Entry entry, SettableFuture<Entry> validation) {
+        entries.put(key, entry);
+        inFlight.remove(key, validation);
+        validation.set(entry);
+    }
+
+    private static Entry await(SettableFuture<Entry> validation, String projectId) throws ConnectorException {
+        try {
+            return validation.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted while validating the credentials of project " + projectId, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ConnectorException) {
+                throw (ConnectorException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new ConnectorException("Unable to validate the credentials of project " + projectId, cause);
+        }
+    }
+
+    /**
+     * Returns true if trying again would give the same answer: the credentials or project were rejected, or the
+     * token endpoint refused the key.
+     */
+    static boolean isDefinitive(Throwable e) {
+        if (e instanceof TokenResponseException) {
+            int statusCode = ((TokenResponseException) e).getStatusCode();
+            return statusCode >= 400 && statusCode < 500;
+        }
+        return Utils.isAuthorizationError(e) || Utils.isNotFoundError(e);
+    }
+
+    /**
+     * Forgets the cached result so the next {@link #validate} goes back to GCE.
+     */
+    public void invalidate(String serviceAccountId, String serviceAccountP12FilePath, String projectId) {
+        entries.remove(new Key(serviceAccountId, serviceAccountP12FilePath, projectId));
+    }
+
+    private static class Entry {
+        private final long expiresAt;
+        private final Exception failure;
+
+        private Entry(long expiresAt, Exception failure) {
+            this.expiresAt = expiresAt;
+            this.failure = failure;
+        }
+    }
+
+    private static class Key {
+        private final String serviceAccountId;
+        private final String serviceAccountP12FilePath;
+        private final String projectId;
+
+        private Key(String serviceAccountId, String serviceAccountP12FilePath, String projectId) {
+            this.serviceAccountId = serviceAccountId;
+            this.serviceAccountP12FilePath = serviceAccountP12FilePath;
+            this.projectId = projectId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return Objects.equal(serviceAccountId, key.serviceAccountId)
+                    && Objects.equal(serviceAccountP12FilePath, key.serviceAccountP12FilePath)
+                    && Objects.equal(projectId, key.projectId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(serviceAccountId, serviceAccountP12FilePath, projectId);
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package com.appdynamics.cloud.connectors.gce;
+
+import com.google.api.services.compute.Compute;
+import com.google.api.services.compute.model.Disk;
+import com.google.api.services.compute.model.Operation;
+import com.google.common.base.Objects;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps boot disks built ahead of time per image and zone, for createMachine to attach.
+ */
+public class WarmDiskPool {
+
+    public static final String FILL_SECONDS_PROPERTY_KEY = "gce.connector.warm.pool.fill.seconds";
+    public static final String IDLE_MINUTES_PROPERTY_KEY = "gce.connector.warm.pool.idle.minutes";
+
+    /**
+     * Description put on every pooled disk; such disks are left alone by the boot disk sweep while they are pooled.
+     */
+    public static final String WARM_DISK_DESCRIPTION = "Warm boot disk created by " + ConnectorLocator.APPLICATION_NAME;
+
+    private static final int DEFAULT_FILL_SECONDS = 30;
+    private static final int DEFAULT_IDLE_MINUTES = 60;
+    private static final String DISK_NAME_PREFIX = "appd-warm-";
+
+    private static final Logger LOG = Logger.getLogger(WarmDiskPool.class.getName());
+
+    private static final WarmDiskPool INSTANCE = new WarmDiskPool();
+
+    private final ConcurrentMap<PoolKey, Pool> pools = new ConcurrentHashMap<PoolKey, Pool>();
+
+    //Names of the disks created by this pool and not claimed yet
+    private final Set<String> pooledDisks = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final ScheduledExecutorService executorService;
+    private final Random random = new Random();
+
+    private final long idleMillis;
+
+    /**
+     * Private constructor on singleton.
+     */
+    private WarmDiskPool() {
+        long fillSeconds = Integer.getInteger(FILL_SECONDS_PROPERTY_KEY, DEFAULT_FILL_SECONDS);
+        idleMillis = TimeUnit.MINUTES.toMillis(Integer.getInteger(IDLE_MINUTES_PROPERTY_KEY, DEFAULT_IDLE_MINUTES));
+        executorService = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("gce-warm-disk-pool-%d").build());
+        executorService.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                long idleCutoff = System.currentTimeMillis() - idleMillis;
+                for (Pool pool : pools.values()) {
+                    if (pool.lastClaim < idleCutoff) {
+                        LOG.log(Level.FINE, "Dropping the warm pool of " + pool.key + ", unused for " + idleMillis + " ms");
+                        release(pool);
+                    } else {
+                        pool.fill();
+                    }
+                }
+            }
+        }, fillSeconds, fillSeconds, TimeUnit.SECONDS);
+    }
+
+    public static WarmDiskPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Takes a ready disk of the image out of the pool of the zone, or returns null if none is ready. The pool is
+     * created or resized to the given size and topped up in the background either way; a size of 0 drops it.
+     */
+    public String claim(Compute connector, String projectId, String zone, String sourceImageUrl, int size,
+                        long maxAgeMillis) {
+        PoolKey key = new PoolKey(projectId, zone, sourceImageUrl);
+        Pool pool = pools.get(key);
+        if (pool == null) {
+            if (size <= 0) {
+                return null;
+            }
+            Pool newPool = new Pool(key);
+            pool = pools.putIfAbsent(key, newPool);
+            if (pool == null) {
+                pool = newPool;
+            }
+        }
+        pool.connector = connector;
+        pool.maxAgeMillis = maxAgeMillis;
+        pool.lastClaim = System.currentTimeMillis();
+
+        String diskName = pool.claim();
+        resize(pool, size);
+        return diskName;
+    }
+
+    /**
+     * Resizes the pools of the image in every zone and tops them up in the background; a size of 0 drops them.
+     */
+    public void resizeImage(String sourceImageUrl, int size) {
+        for (Pool pool : pools.values()) {
+            if (pool.key.sourceImageUrl.equals(sourceImageUrl)) {
+                resize(pool, size);
+            }
+        }
+    }
+
+    private void resize(final Pool pool, int size) {
+        if (size <= 0) {
+            release(pool);
+            return;
+        }
+        pool.targetSize = size;
+        executorService.execute(new Runnable() {
+            @Override
+            public void run() {
+                pool.fill();
+            }
+        });
+    }
+
+    /**
+     * Deletes the warm disks of every pool of the project and stops filling them.
+     */
+    public void releaseProject(String projectId) {
+        for (Pool pool : pools.values()) {
+            if (pool.key.projectId.equals(projectId)) {
+                release(pool);
+            }
+        }
+    }
+
+    /**
+     * Deletes the warm disks of the image in every zone and stops filling them.
+     */
+    public void releaseImage(String sourceImageUrl) {
+        for (Pool pool : pools.values()) {
+            if (pool.key.sourceImageUrl.equals(sourceImageUrl)) {
+                release(pool);
+            }
+        }
+    }
+
+    private void release(final Pool pool) {
+        if (!pools.remove(pool.key, pool)) {
+            return;
+        }
+        pool.released = true;
+        executorService.execute(new Runnable() {
+            @Override
+            public void run() {
+                WarmDisk disk;
+                while ((disk = pool.ready.poll()) != null) {
+                    pool.delete(disk.name);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns true if the disk is waiting in one of the pools, or being created for one.
+     */
+    public boolean isPooled(String diskName) {
+        return pooledDisks.contains(diskName);
+    }
+
+    /**
+     * Number of disks ready to be claimed, over all pools.
+     */
+    public int getReadyCount() {
+        int count = 0;
+        for (Pool pool : pools.values()) {
+            count += pool.ready.size();
+        }
+        return count;
+    }
+
+    /**
+     * Number of disks being created, over all pools.
+     */
+    public int getCreatingCount() {
+        int count = 0;
+        for (Pool pool : pools.values()) {
+            count += pool.creating.get();
+        }
+        return count;
+    }
+
+    private String newDiskName() {
+        synchronized (random) {
+            return DISK_NAME_PREFIX + Long.toHexString(random.nextLong() & Long.MAX_VALUE);
+        }
+    }
+
+    private class Pool {
+
+        private final PoolKey key;
+        private final ConcurrentLinkedQueue<WarmDisk> ready = new ConcurrentLinkedQueue<WarmDisk>();
+        private final AtomicInteger creating = new AtomicInteger();
+
+        private volatile Compute connector;
+        private volatile int targetSize;
+        private volatile long maxAgeMillis;
+        private volatile long lastClaim = System.currentTimeMillis();
+        private volatile boolean released;
+
+        private Pool(PoolKey key) {
+            this.key = key;
+        }
+
+        private String claim() {
+            long now = System.currentTimeMillis();
+            WarmDisk disk;
+            while ((disk = ready.poll()) != null) {
+                if (now - disk.createdAt > maxAgeMillis) {
+                    delete(disk.name);
+                    continue;
+                }
+                pooledDisks.remove(disk.name);
+                return disk.name;
+            }
+            return null;
+        }
+
+        private void fill() {
+            long now = System.currentTimeMillis();
+            for (Iterator<WarmDisk> iterator = ready.iterator(); iterator.hasNext(); ) {
+                WarmDisk disk = iterator.next();
+                if (now - disk.createdAt > maxAgeMillis && ready.remove(disk)) {
+                    delete(disk.name);
+                }
+            }
+            while (ready.size() > targetSize) {
+                WarmDisk disk = ready.poll();
+                if (disk == null) {
+                    break;
+                }
+                delete(disk.name);
+            }
+
+            int missing = targetSize - ready.size() - creating.get();
+            for (int i = 0; i < missing; i++) {
+                create();
+            }
+        }
+
+        private void create() {
+            final String diskName = newDiskName();
+            final Compute connector = this.connector;
+
+            Disk disk = new Disk();
+            disk.setName(diskName);
+            disk.setDescription(WARM_DISK_DESCRIPTION);
+            disk.setSourceImage(key.sourceImageUrl);
+            Compute.Disks.Insert insert;
+            try {
+                insert = connector.disks().insert(key.projectId, key.zone, disk);
+                insert.setSourceImage(key.sourceImageUrl);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Unable to create warm boot disk in " + key, e);
+                return;
+            }
+
+            creating.incrementAndGet();
+            pooledDisks.add(diskName);
+            Futures.addCallback(RequestScheduler.getInstance().submit(connector, key.projectId,
+                    RequestScheduler.Category.MUTATION, insert), new FutureCallback<Operation>() {
+                @Override
+                public void onSuccess(Operation operation) {
+                    Futures.addCallback(OperationPoller.getInstance().watch(connector, key.projectId, key.zone, operation),
+                            new FutureCallback<Operation>() {
+                                @Override
+                                public void onSuccess(Operation operation) {
+                                    creating.decrementAndGet();
+                                    if (released) {
+                                        delete(diskName);
+                                        return;
+                                    }
+                                    WarmDisk disk = new WarmDisk(diskName, System.currentTimeMillis());
+                                    ready.add(disk);
+                                    //Released while adding, the drain may have run already
+                                    if (released && ready.remove(disk)) {
+                                        delete(diskName);
+                                    }
+                                }
+
+                                @Override
+                                public void onFailure(Throwable t) {
+                                    creating.decrementAndGet();
+                                    LOG.log(Level.WARNING, "Warm boot disk " + diskName + " in " + key + " was not created", t);
+                                    delete(diskName);
+                                }
+                            }, MoreExecutors.sameThreadExecutor());
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    creating.decrementAndGet();
+                    pooledDisks.remove(diskName);
+                    LOG.log(Level.WARNING, "Unable to create warm boot disk in " + key, t);
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+
+        private void delete(final String diskName) {
+            pooledDisks.remove(diskName);
+            Compute.Disks.Delete delete;
+            try {
+                delete = connector.disks().delete(key.projectId, key.zone, diskName);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Unable to delete warm boot disk " + diskName, e);
+                return;
+            }
+            //A disk left behind here is only picked up by the boot disk sweep after the connector is restarted
+            Futures.addCallback(RequestScheduler.getInstance().submit(connector, key.projectId,
+                    RequestScheduler.Category.MUTATION, delete), new FutureCallback<Operation>() {
+                @Override
+                public void onSuccess(Operation operation) {
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    if (!Utils.isNotFoundError(t)) {
+                        LOG.log(Level.WARNING, "Unable to delete warm boot disk " + diskName, t);
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+    }
+
+    private static class WarmDisk {
+
+        private final String name;
+        private final long createdAt;
+
+        private WarmDisk(String name, long createdAt) {
+            this.name = name;
+            this.createdAt = createdAt;
+        }
+    }
+
+    private static final class PoolKey {
+
+        private final String projectId;
+        private final String zone;
+        private final String sourceImageUrl;
+
+        private PoolKey(String projectId, String zone, String sourceImageUrl) {
+            this.projectId = projectId;
+            this.zone = zone;
+            this.sourceImageUrl = sourceImageUrl;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof PoolKey)) {
+                return false;
+            }
+            PoolKey that = (PoolKey) o;
+            return Objects.equal(projectId, that.projectId) && Objects.equal(zone, that.zone)
+                    && Objects.equal(sourceImageUrl, that.sourceImageUrl);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(projectId, zone, sourceImageUrl);
+        }
+
+        @Override
+        public String toString() {
+            return projectId + "/" + zone + " (" + sourceImageUrl + ")";
+        }
+    }
+}
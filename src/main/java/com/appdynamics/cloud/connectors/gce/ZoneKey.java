@@ -0,0 +1,47 @@
+package com.appdynamics.cloud.connectors.gce;
+
+import com.google.common.base.Objects;
+
+/**
+ * Identifies a zone within a GCE project.
+ */
+public final class ZoneKey {
+
+    private final String projectId;
+    private final String zone;
+
+    public ZoneKey(String projectId, String zone) {
+        this.projectId = projectId;
+        this.zone = zone;
+    }
+
+    public String getProjectId() {
+        return projectId;
+    }
+
+    public String getZone() {
+        return zone;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ZoneKey)) {
+            return false;
+        }
+        ZoneKey zoneKey = (ZoneKey) o;
+        return Objects.equal(projectId, zoneKey.projectId) && Objects.equal(zone, zoneKey.zone);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(projectId, zone);
+    }
+
+    @Override
+    public String toString() {
+        return projectId + "/" + zone;
+    }
+}
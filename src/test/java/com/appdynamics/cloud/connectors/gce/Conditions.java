@@ -0,0 +1,27 @@
+package com.appdynamics.cloud.connectors.gce;
+
+/**
+ * Waits for the background work of the connector to reach a state, as it runs on its own threads.
+ */
+final class Conditions {
+
+    private static final long TIMEOUT_MILLIS = 10000;
+    private static final long POLL_MILLIS = 10;
+
+    interface Condition {
+        boolean holds();
+    }
+
+    private Conditions() {
+    }
+
+    static void await(String description, Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.holds()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Timed out waiting until " + description);
+            }
+            Thread.sleep(POLL_MILLIS);
+        }
+    }
+}
@@ -0,0 +1,529 @@
+package com.appdynamics.cloud.connectors.gce;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.compute.Compute;
+import com.google.api.services.compute.model.AccessConfig;
+import com.google.api.services.compute.model.Disk;
+import com.google.api.services.compute.model.DiskList;
+import com.google.api.services.compute.model.Image;
+import com.google.api.services.compute.model.ImageList;
+import com.google.api.services.compute.model.Instance;
+import com.google.api.services.compute.model.InstanceList;
+import com.google.api.services.compute.model.NetworkInterface;
+import com.google.api.services.compute.model.Operation;
+import com.google.api.services.compute.model.OperationList;
+import com.google.api.services.compute.model.Project;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * In-process stand-in for the OAuth token endpoint and the parts of the Compute API the connector uses.
+ */
+public class FakeComputeTransport extends HttpTransport {
+
+    private static final String COMPUTE_PREFIX = "https://www.googleapis.com/compute/v1/projects/";
+    private static final String BATCH_URL = "https://www.googleapis.com/batch";
+    private static final String TOKEN_URL = "https://accounts.google.com/o/oauth2/token";
+    private static final String BOUNDARY = "batch_fake_compute";
+    private static final long ENDED_OPERATIONS_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
+    private static final Pattern ZONE_RESOURCE =
+            Pattern.compile("^([^/]+)/zones/([^/]+)/(disks|instances|operations)(?:/([^/?]+))?(?:/([a-zA-Z]+))?$");
+
+    private final JacksonFactory jsonFactory = new JacksonFactory();
+
+    private final long latencyMillis;
+    private final long operationMillis;
+
+    private final ConcurrentMap<String, Disk> disks = new ConcurrentHashMap<String, Disk>();
+    private final ConcurrentMap<String, Instance> instances = new ConcurrentHashMap<String, Instance>();
+    private final ConcurrentMap<String, FakeOperation> operations = new ConcurrentHashMap<String, FakeOperation>();
+    private final Queue<Operation> endedOperations = new ConcurrentLinkedQueue<Operation>();
+    private final AtomicLong operationIds = new AtomicLong();
+    private final AtomicLong exchanges = new AtomicLong();
+    private final AtomicInteger failingInstanceInserts = new AtomicInteger();
+    private final List<Rejection> rejections = new CopyOnWriteArrayList<Rejection>();
+
+    /**
+     * @param latencyMillis   time each HTTP exchange takes
+     * @param operationMillis time from the creation of an operation until it is DONE
+     */
+    public FakeComputeTransport(long latencyMillis, long operationMillis) {
+        this.latencyMillis = latencyMillis;
+        this.operationMillis = operationMillis;
+    }
+
+    /**
+     * Makes every Compute client built from now on use this transport.
+     */
+    public void install() {
+        SharedTransport.getInstance().setTransport(this);
+    }
+
+    /**
+     * Builds a Compute client on this transport which sends no credentials.
+     */
+    public Compute newClient() {
+        return new Compute.Builder(this, jsonFactory, null).setApplicationName(ConnectorLocator.APPLICATION_NAME)
+                .build();
+    }
+
+    /**
+     * Rejects the next requests with the given method whose URL contains the fragment, times times, with the HTTP
+     * status and GCE error reason given.
+     */
+    public void reject(String method, String urlFragment, int status, String reason, int times) {
+        rejections.add(new Rejection(method, urlFragment, status, reason, times));
+    }
+
+    /**
+     * Makes the operations of the next instance inserts end in an error, without creating the instance.
+     */
+    public void failInstanceInserts(int count) {
+        failingInstanceInserts.addAndGet(count);
+    }
+
+    public void putDisk(String projectId, String zone, String name) {
+        disks.put(key(projectId, zone, name), new Disk().setName(name).setZone(zone).setStatus("READY")
+                .setCreationTimestamp(new DateTime(System.currentTimeMillis()).toStringRfc3339()));
+    }
+
+    public boolean hasDisk(String projectId, String zone, String name) {
+        return disks.containsKey(key(projectId, zone, name));
+    }
+
+    public boolean hasInstance(String projectId, String zone, String name) {
+        return instances.containsKey(key(projectId, zone, name));
+    }
+
+    /**
+     * Changes the status of an instance without an operation, as the guest shutting down does.
+     */
+    public void setInstanceStatus(String projectId, String zone, String name, String status) {
+        instances.get(key(projectId, zone, name)).setStatus(status);
+    }
+
+    /**
+     * Adds an operation on the named instance which ended at the given time, without changing the instance, as
+     * when the operation shows up in the listing late. Returns its name.
+     */
+    public String putEndedOperation(String projectId, String zone, String type, String instanceName, long endTime) {
+        String name = "operation-" + operationIds.incrementAndGet();
+        addEndedOperation(toOperation(projectId, zone, name, type, link(projectId, zone, "instances", instanceName),
+                "DONE").setEndTime(new DateTime(endTime).toStringRfc3339()));
+        return name;
+    }
+
+    /**
+     * Creates a running instance and its boot disk directly, without going through an operation.
+     */
+    public void putRunningInstance(String projectId, String zone, String name) {
+        Disk disk = new Disk().setName(name).setZone(zone).setStatus("READY")
+                .setCreationTimestamp(new DateTime(System.currentTimeMillis()).toStringRfc3339());
+        disks.put(key(projectId, zone, name), disk);
+        instances.put(key(projectId, zone, name), newInstance(name, zone, "RUNNING"));
+    }
+
+    /**
+     * Number of HTTP exchanges served so far; a batch counts once.
+     */
+    public long getExchangeCount() {
+        return exchanges.get();
+    }
+
+    @Override
+    protected LowLevelHttpRequest buildRequest(final String method, final String url) {
+        return new MockLowLevelHttpRequest(url) {
+            @Override
+            public LowLevelHttpResponse execute() throws IOException {
+                exchanges.incrementAndGet();
+                sleep(latencyMillis);
+                String content = readContent(this);
+                if (url.startsWith(BATCH_URL)) {
+                    return executeBatch(content);
+                }
+                return toResponse(handle(method, url, content));
+            }
+        };
+    }
+
+    @Override
+    public boolean supportsMethod(String method) {
+        return true;
+    }
+
+    private LowLevelHttpResponse executeBatch(String content) {
+        StringBuilder response = new StringBuilder();
+        String delimiter = content.substring(0, content.indexOf("\r\n"));
+        for (String part : content.split(Pattern.quote(delimiter))) {
+            int partHeadersEnd = part.indexOf("\r\n\r\n");
+            if (partHeadersEnd < 0) {
+                continue;
+            }
+            String request = part.substring(partHeadersEnd + 4);
+            String[] requestLine = request.substring(0, request.indexOf("\r\n")).split(" ");
+            int headersEnd = request.indexOf("\r\n\r\n");
+            String body = headersEnd < 0 ? "" : request.substring(headersEnd + 4).trim();
+
+            Reply reply = handle(requestLine[0], requestLine[1], body);
+            response.append("--").append(BOUNDARY).append("\r\n")
+                    .append("Content-Type: application/http\r\n\r\n")
+                    .append("HTTP/1.1 ").append(reply.status).append(reply.status == 200 ? " OK" : " Error").append("\r\n")
+                    .append("Content-Type: application/json; charset=UTF-8\r\n\r\n")
+                    .append(reply.json).append("\r\n\r\n");
+        }
+        response.append("--").append(BOUNDARY).append("--\r\n");
+
+        return new MockLowLevelHttpResponse().setStatusCode(200)
+                .setContentType("multipart/mixed; boundary=" + BOUNDARY)
+                .setContent(response.toString());
+    }
+
+    private Reply handle(String method, String url, String body) {
+        try {
+            if (url.startsWith(TOKEN_URL)) {
+                return new Reply(200, "{\"access_token\":\"fake-token\",\"token_type\":\"Bearer\",\"expires_in\":3600}");
+            }
+            if (!url.startsWith(COMPUTE_PREFIX)) {
+                return notFound(url);
+            }
+            for (Rejection rejection : rejections) {
+                if (rejection.matches(method, url)) {
+                    return new Reply(rejection.status, error(rejection.status, rejection.reason, "Rejected " + url));
+                }
+            }
+
+            String path = url.substring(COMPUTE_PREFIX.length());
+            int query = path.indexOf('?');
+            if (query >= 0) {
+                path = path.substring(0, query);
+            }
+
+            if (path.indexOf('/') < 0) {
+                return ok(new Project().setName(path));
+            }
+            if (path.endsWith("/global/images")) {
+                return ok(listImages(path.substring(0, path.indexOf('/'))));
+            }
+
+            Matcher matcher = ZONE_RESOURCE.matcher(path);
+            if (!matcher.matches()) {
+                return notFound(url);
+            }
+            String projectId = matcher.group(1);
+            String zone = matcher.group(2);
+            String collection = matcher.group(3);
+            String name = matcher.group(4);
+            String action = matcher.group(5);
+
+            if ("operations".equals(collection)) {
+                //Every ended operation, GCE would narrow them down with the filter
+                return name == null ? ok(new OperationList().setItems(listEndedOperations(projectId, zone)))
+                        : getOperation(projectId, zone, name);
+            }
+            if ("disks".equals(collection)) {
+                return handleDisks(method, projectId, zone, name, body);
+            }
+            return handleInstances(method, projectId, zone, name, action, body);
+        } catch (IOException e) {
+            return new Reply(400, error(400, "invalid", e.getMessage()));
+        }
+    }
+
+    private Reply handleDisks(String method, String projectId, String zone, String name, String body) throws IOException {
+        if ("POST".equals(method)) {
+            Disk disk = jsonFactory.fromString(body, Disk.class);
+            disk.setZone(zone).setStatus("READY").setCreationTimestamp(new DateTime(System.currentTimeMillis()).toStringRfc3339());
+            if (disks.putIfAbsent(key(projectId, zone, disk.getName()), disk) != null) {
+                return new Reply(409, error(409, "alreadyExists", "Disk " + disk.getName() + " already exists"));
+            }
+            return ok(newOperation(projectId, zone, "insert", link(projectId, zone, "disks", disk.getName()), null, false));
+        }
+        if ("DELETE".equals(method)) {
+            if (disks.remove(key(projectId, zone, name)) == null) {
+                return notFound(name);
+            }
+            return ok(newOperation(projectId, zone, "delete", link(projectId, zone, "disks", name), null, false));
+        }
+        if (name != null) {
+            Disk disk = disks.get(key(projectId, zone, name));
+            return disk == null ? notFound(name) : ok(disk);
+        }
+        List<Disk> items = new ArrayList<Disk>();
+        String prefix = key(projectId, zone, "");
+        for (Map.Entry<String, Disk> entry : disks.entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                items.add(entry.getValue());
+            }
+        }
+        return ok(new DiskList().setItems(items));
+    }
+
+    private Reply handleInstances(String method, String projectId, String zone, String name, String action, String body)
+            throws IOException {
+        if ("POST".equals(method) && name == null) {
+            Instance instance = jsonFactory.fromString(body, Instance.class);
+            String instanceKey = key(projectId, zone, instance.getName());
+            if (instances.putIfAbsent(instanceKey, newInstance(instance.getName(), zone, "PROVISIONING")) != null) {
+                return new Reply(409, error(409, "alreadyExists", "Instance " + instance.getName() + " already exists"));
+            }
+            boolean failing = failingInstanceInserts.getAndDecrement() > 0;
+            if (!failing) {
+                failingInstanceInserts.incrementAndGet();
+            }
+            return ok(newOperation(projectId, zone, "insert", link(projectId, zone, "instances", instance.getName()),
+                    instanceKey, failing));
+        }
+        Instance instance = instances.get(key(projectId, zone, name));
+        if ("POST".equals(method)) {
+            //Instance actions such as reset
+            return instance == null ? notFound(name)
+                    : ok(newOperation(projectId, zone, action, link(projectId, zone, "instances", name), null, false));
+        }
+        if ("DELETE".equals(method)) {
+            if (instances.remove(key(projectId, zone, name)) == null) {
+                return notFound(name);
+            }
+            return ok(newOperation(projectId, zone, "delete", link(projectId, zone, "instances", name), null, false));
+        }
+        if (name != null) {
+            return instance == null ? notFound(name) : ok(instance);
+        }
+        List<Instance> items = new ArrayList<Instance>();
+        String prefix = key(projectId, zone, "");
+        for (Map.Entry<String, Instance> entry : instances.entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                items.add(entry.getValue());
+            }
+        }
+        return ok(new InstanceList().setItems(items));
+    }
+
+    private Reply getOperation(String projectId, String zone, String name) throws IOException {
+        FakeOperation operation = operations.get(name);
+        if (operation == null) {
+            return notFound(name);
+        }
+        long elapsed = System.currentTimeMillis() - operation.createdAt;
+        String status = elapsed >= operationMillis ? "DONE" : (elapsed >= operationMillis / 3 ? "RUNNING" : "PENDING");
+        if ("DONE".equals(status)) {
+            operations.remove(name);
+            return ok(finish(toOperation(projectId, zone, name, operation.type, operation.targetLink, status),
+                    operation.instanceKey, operation.failing));
+        }
+        return ok(toOperation(projectId, zone, name, operation.type, operation.targetLink, status));
+    }
+
+    private Operation newOperation(String projectId, String zone, String type, String targetLink, String instanceKey,
+                                   boolean failing) {
+        String name = "operation-" + operationIds.incrementAndGet();
+        if (operationMillis <= 0) {
+            return finish(toOperation(projectId, zone, name, type, targetLink, "DONE"), instanceKey, failing);
+        }
+        operations.put(name, new FakeOperation(type, targetLink, instanceKey, failing));
+        return toOperation(projectId, zone, name, type, targetLink, "PENDING");
+    }
+
+    /**
+     * Applies the outcome of an operation once it is DONE, and adds it to the operations of its zone.
+     */
+    private Operation finish(Operation operation, String instanceKey, boolean failing) {
+        operation.setEndTime(new DateTime(System.currentTimeMillis()).toStringRfc3339());
+        if (instanceKey != null && failing) {
+            instances.remove(instanceKey);
+            Operation.Error.Errors error = new Operation.Error.Errors().setCode("ZONE_RESOURCE_POOL_EXHAUSTED")
+                    .setMessage("The zone does not have enough resources available");
+            operation.setError(new Operation.Error().setErrors(Collections.singletonList(error)));
+        } else if (instanceKey != null) {
+            Instance instance = instances.get(instanceKey);
+            if (instance != null) {
+                instance.setStatus("RUNNING");
+            }
+        }
+        addEndedOperation(operation);
+        return operation;
+    }
+
+    private void addEndedOperation(Operation operation) {
+        endedOperations.add(operation);
+        //Long runs would otherwise list ever more operations
+        long oldest = System.currentTimeMillis() - ENDED_OPERATIONS_MILLIS;
+        Operation head;
+        while ((head = endedOperations.peek()) != null && DateTime.parseRfc3339(head.getEndTime()).getValue() < oldest) {
+            endedOperations.remove(head);
+        }
+    }
+
+    private List<Operation> listEndedOperations(String projectId, String zone) {
+        String zoneUrl = COMPUTE_PREFIX + projectId + "/zones/" + zone;
+        List<Operation> items = new ArrayList<Operation>();
+        for (Operation operation : endedOperations) {
+            if (zoneUrl.equals(operation.getZone())) {
+                items.add(operation);
+            }
+        }
+        return items;
+    }
+
+    private static Operation toOperation(String projectId, String zone, String name, String type, String targetLink,
+                                         String status) {
+        return new Operation().setName(name).setOperationType(type).setTargetLink(targetLink).setStatus(status)
+                .setZone(COMPUTE_PREFIX + projectId + "/zones/" + zone);
+    }
+
+    private static String link(String projectId, String zone, String collection, String name) {
+        return COMPUTE_PREFIX + projectId + "/zones/" + zone + "/" + collection + "/" + name;
+    }
+
+    private static Instance newInstance(String name, String zone, String status) {
+        AccessConfig accessConfig = new AccessConfig().setName("External NAT").setType("ONE_TO_ONE_NAT")
+                .setNatIP("10.0.0." + ((name.hashCode() & 0x7f) + 1));
+        NetworkInterface networkInterface = new NetworkInterface().setName("Default")
+                .setAccessConfigs(Collections.singletonList(accessConfig));
+        return new Instance().setName(name).setZone(zone).setStatus(status)
+                .setNetworkInterfaces(Collections.singletonList(networkInterface));
+    }
+
+    private static ImageList listImages(String projectId) {
+        List<Image> images = new ArrayList<Image>();
+        for (String name : new String[]{"debian-7-wheezy-v20140318", "debian-7-wheezy-v20140408", "centos-6-v20140408"}) {
+            images.add(new Image().setName(name).setSelfLink(COMPUTE_PREFIX + projectId + "/global/images/" + name)
+                    .setCreationTimestamp("2014-04-08T00:00:00.000-07:00"));
+        }
+        return new ImageList().setItems(images);
+    }
+
+    private Reply ok(Object model) {
+        try {
+            return new Reply(200, jsonFactory.toString(model));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Reply notFound(String what) {
+        return new Reply(404, error(404, "notFound", "The resource '" + what + "' was not found"));
+    }
+
+    private static String error(int code, String reason, String message) {
+        String escaped = message.replace("\\", "\\\\").replace("\"", "\\\"");
+        return "{\"error\":{\"errors\":[{\"domain\":\"global\",\"reason\":\"" + reason + "\",\"message\":\"" + escaped +
+                "\"}],\"code\":" + code + ",\"message\":\"" + escaped + "\"}}";
+    }
+
+    private static LowLevelHttpResponse toResponse(Reply reply) {
+        return new MockLowLevelHttpResponse().setStatusCode(reply.status)
+                .setReasonPhrase(reply.status == 200 ? "OK" : "Error")
+                .setContentType("application/json; charset=UTF-8")
+                .setContent(reply.json);
+    }
+
+    private static String readContent(LowLevelHttpRequest request) throws IOException {
+        if (request.getStreamingContent() == null) {
+            return "";
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        request.getStreamingContent().writeTo(out);
+        InputStream in = new ByteArrayInputStream(out.toByteArray());
+        if ("gzip".equals(request.getContentEncoding())) {
+            in = new GZIPInputStream(in);
+        }
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            decoded.write(buffer, 0, read);
+        }
+        return decoded.toString("UTF-8");
+    }
+
+    private static String key(String projectId, String zone, String name) {
+        return projectId + "/" + zone + "/" + name;
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Reply {
+
+        private final int status;
+        private final String json;
+
+        private Reply(int status, String json) {
+            this.status = status;
+            this.json = json;
+        }
+    }
+
+    private static class FakeOperation {
+
+        private final long createdAt = System.currentTimeMillis();
+        private final String type;
+        private final String targetLink;
+        private final String instanceKey;
+        private final boolean failing;
+
+        private FakeOperation(String type, String targetLink, String instanceKey, boolean failing) {
+            this.type = type;
+            this.targetLink = targetLink;
+            this.instanceKey = instanceKey;
+            this.failing = failing;
+        }
+    }
+
+    private static class Rejection {
+
+        private final String method;
+        private final String urlFragment;
+        private final int status;
+        private final String reason;
+        private final AtomicInteger remaining;
+
+        private Rejection(String method, String urlFragment, int status, String reason, int times) {
+            this.method = method;
+            this.urlFragment = urlFragment;
+            this.status = status;
+            this.reason = reason;
+            this.remaining = new AtomicInteger(times);
+        }
+
+        private boolean matches(String method, String url) {
+            if (!this.method.equals(method) || !url.contains(urlFragment)) {
+                return false;
+            }
+            //Counted down only for requests which match
+            return remaining.getAndDecrement() > 0;
+        }
+    }
+}
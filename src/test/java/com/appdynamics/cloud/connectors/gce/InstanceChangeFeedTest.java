@@ -0,0 +1,206 @@
+package com.appdynamics.cloud.connectors.gce;
+
+import com.google.api.services.compute.Compute;
+import com.google.api.services.compute.model.Instance;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class InstanceChangeFeedTest {
+
+    private static final String PROJECT_ID = "test-project";
+    private static final String ZONE = "us-central1-a";
+
+    private static final long POLL_MILLIS = 20;
+    private static final long NEVER_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private FakeComputeTransport transport;
+    private Compute client;
+
+    @BeforeClass
+    public static void configure() {
+        TestProperties.disableJournal();
+        TestProperties.useShortDelays();
+    }
+
+    @Before
+    public void setUp() {
+        transport = new FakeComputeTransport(0, 0);
+        client = transport.newClient();
+        transport.putRunningInstance(PROJECT_ID, ZONE, "web");
+    }
+
+    @Test
+    public void seedsFromZoneListing() throws Exception {
+        InstanceChangeFeed feed = newFeed(NEVER_MILLIS, NEVER_MILLIS);
+
+        assertEquals("RUNNING", getInstance(feed, "web").getStatus());
+        assertNull(getInstance(feed, "missing"));
+        assertEquals(1, feed.getTrackedInstanceCount());
+    }
+
+    @Test
+    public void rereadsInstanceTouchedByOperation() throws Exception {
+        final InstanceChangeFeed feed = newFeed(NEVER_MILLIS, NEVER_MILLIS);
+        getInstance(feed, "web");
+
+        transport.setInstanceStatus(PROJECT_ID, ZONE, "web", "TERMINATED");
+        transport.putEndedOperation(PROJECT_ID, ZONE, "stop", "web", System.currentTimeMillis());
+
+        awaitStatus(feed, "web", "TERMINATED");
+        assertEquals(1, feed.getRereadCount());
+    }
+
+    @Test
+    public void dropsInstanceDeletedByOperation() throws Exception {
+        final InstanceChangeFeed feed = newFeed(NEVER_MILLIS, NEVER_MILLIS);
+        getInstance(feed, "web");
+
+        client.instances().delete(PROJECT_ID, ZONE, "web").execute();
+
+        Conditions.await("the deleted instance is dropped", new Conditions.Condition() {
+            @Override
+            public boolean holds() {
+                return feed.getTrackedInstanceCount() == 0;
+            }
+        });
+        assertEquals(0, feed.getRereadCount());
+    }
+
+    @Test
+    public void operationsInOverlapAreHandledOnce() throws Exception {
+        final InstanceChangeFeed feed = newFeed(NEVER_MILLIS, NEVER_MILLIS);
+        getInstance(feed, "web");
+
+        transport.putEndedOperation(PROJECT_ID, ZONE, "reset", "web", System.currentTimeMillis());
+        awaitRereads(feed, 1);
+
+        //The operation stays in every listing of the overlap, and is skipped from the second on
+        Thread.sleep(POLL_MILLIS * 10);
+        assertEquals(1, feed.getRereadCount());
+    }
+
+    @Test
+    public void lateOperationWithinOverlapIsSeen() throws Exception {
+        final InstanceChangeFeed feed = newFeed(NEVER_MILLIS, NEVER_MILLIS);
+        getInstance(feed, "web");
+        long now = System.currentTimeMillis();
+        transport.setInstanceStatus(PROJECT_ID, ZONE, "web", "STOPPING");
+        transport.putEndedOperation(PROJECT_ID, ZONE, "stop", "web", now);
+        awaitStatus(feed, "web", "STOPPING");
+
+        //Ended before the watermark, but listed only now
+        transport.setInstanceStatus(PROJECT_ID, ZONE, "web", "TERMINATED");
+        transport.putEndedOperation(PROJECT_ID, ZONE, "stop", "web", now - TimeUnit.SECONDS.toMillis(30));
+
+        awaitStatus(feed, "web", "TERMINATED");
+        assertEquals(2, feed.getRereadCount());
+    }
+
+    @Test
+    public void operationsBeforeOverlapAreIgnored() throws Exception {
+        InstanceChangeFeed feed = newFeed(NEVER_MILLIS, NEVER_MILLIS);
+        getInstance(feed, "web");
+
+        transport.putEndedOperation(PROJECT_ID, ZONE, "reset", "web",
+                System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(2));
+
+        Thread.sleep(POLL_MILLIS * 10);
+        assertEquals(0, feed.getRereadCount());
+    }
+
+    @Test
+    public void resyncPicksUpChangesWithoutOperation() throws Exception {
+        final InstanceChangeFeed feed = newFeed(200, NEVER_MILLIS);
+        getInstance(feed, "web");
+
+        transport.putRunningInstance(PROJECT_ID, ZONE, "batch");
+        transport.setInstanceStatus(PROJECT_ID, ZONE, "web", "TERMINATED");
+
+        Conditions.await("the new instance is listed", new Conditions.Condition() {
+            @Override
+            public boolean holds() {
+                return feed.getTrackedInstanceCount() == 2;
+            }
+        });
+        awaitStatus(feed, "web", "TERMINATED");
+        assertEquals(0, feed.getRereadCount());
+    }
+
+    @Test
+    public void staleInstanceIsReadAgain() throws Exception {
+        InstanceChangeFeed feed = newFeed(NEVER_MILLIS, 200);
+        getInstance(feed, "web");
+
+        //The guest shutting down changes the instance without an operation
+        transport.setInstanceStatus(PROJECT_ID, ZONE, "web", "TERMINATED");
+
+        assertEquals("RUNNING", getInstance(feed, "web").getStatus());
+        awaitStatus(feed, "web", "TERMINATED");
+        assertEquals(1, feed.getRereadCount());
+    }
+
+    @Test
+    public void terminatedInstanceIsNotReadAgain() throws Exception {
+        InstanceChangeFeed feed = newFeed(NEVER_MILLIS, 100);
+        transport.setInstanceStatus(PROJECT_ID, ZONE, "web", "TERMINATED");
+        getInstance(feed, "web");
+
+        //Not a change GCE makes, so the feed only finds out on the next resync
+        transport.setInstanceStatus(PROJECT_ID, ZONE, "web", "RUNNING");
+
+        Thread.sleep(200);
+        assertEquals("TERMINATED", getInstance(feed, "web").getStatus());
+    }
+
+    @Test
+    public void instanceReadDirectlyIsKept() throws Exception {
+        InstanceChangeFeed feed = newFeed(NEVER_MILLIS, 200);
+        getInstance(feed, "web");
+
+        transport.setInstanceStatus(PROJECT_ID, ZONE, "web", "STOPPING");
+        feed.put(PROJECT_ID, ZONE, client.instances().get(PROJECT_ID, ZONE, "web").execute());
+
+        assertEquals("STOPPING", getInstance(feed, "web").getStatus());
+    }
+
+    private static InstanceChangeFeed newFeed(long resyncMillis, long maxStalenessMillis) {
+        return new InstanceChangeFeed(new InstanceSnapshotCache(50), POLL_MILLIS, resyncMillis, NEVER_MILLIS,
+                maxStalenessMillis);
+    }
+
+    private Instance getInstance(InstanceChangeFeed feed, String instanceName) throws IOException {
+        return feed.getInstance(client, PROJECT_ID, ZONE, instanceName);
+    }
+
+    private void awaitStatus(final InstanceChangeFeed feed, final String instanceName, final String status)
+            throws InterruptedException {
+        Conditions.await(instanceName + " is " + status, new Conditions.Condition() {
+            @Override
+            public boolean holds() {
+                try {
+                    Instance instance = getInstance(feed, instanceName);
+                    assertNotNull(instance);
+                    return status.equals(instance.getStatus());
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+    }
+
+    private static void awaitRereads(final InstanceChangeFeed feed, final long count) throws InterruptedException {
+        Conditions.await(count + " instances are read again", new Conditions.Condition() {
+            @Override
+            public boolean holds() {
+                return feed.getRereadCount() == count;
+            }
+        });
+    }
+}
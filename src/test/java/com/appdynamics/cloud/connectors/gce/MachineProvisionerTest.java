@@ -0,0 +1,146 @@
+package com.appdynamics.cloud.connectors.gce;
+
+import com.google.api.services.compute.Compute;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MachineProvisionerTest {
+
+    private static final String PROJECT_ID = "test-project";
+    private static final String ZONE = "us-central1-a";
+    private static final String IMAGE_URL = "https://www.googleapis.com/compute/v1/projects/debian-cloud/global/images/debian-7";
+
+    private FakeComputeTransport transport;
+    private Compute client;
+    private MachineProvisioner provisioner;
+
+    @BeforeClass
+    public static void configure() throws IOException {
+        TestProperties.useTemporaryJournal();
+        TestProperties.useShortDelays();
+    }
+
+    @Before
+    public void setUp() {
+        transport = new FakeComputeTransport(0, 50);
+        client = transport.newClient();
+        provisioner = new MachineProvisioner(new DiskReaper(WarmDiskPool.getInstance()));
+    }
+
+    @Test
+    public void createsDiskThenInstance() throws Exception {
+        MachineProvisioner.Provisioning provisioning = provisioner.provision(client, request("created"));
+
+        provisioning.getResult().get(10, TimeUnit.SECONDS);
+
+        assertEquals(MachineProvisioner.Phase.DONE, provisioning.getPhase());
+        assertTrue(transport.hasInstance(PROJECT_ID, ZONE, "created"));
+        assertTrue(transport.hasDisk(PROJECT_ID, ZONE, "created"));
+        assertEquals(0, provisioner.getInFlightCount());
+        assertEquals(0, OperationJournal.getInstance().getLiveCount());
+    }
+
+    @Test
+    public void failedInstanceOperationRollsBackDisk() throws Exception {
+        transport.failInstanceInserts(1);
+
+        MachineProvisioner.Provisioning provisioning = provisioner.provision(client, request("failed-operation"));
+
+        awaitFailure(provisioning);
+        assertFalse(transport.hasInstance(PROJECT_ID, ZONE, "failed-operation"));
+        awaitRolledBack("failed-operation");
+    }
+
+    @Test
+    public void rejectedInstanceInsertRollsBackDisk() throws Exception {
+        transport.reject("POST", "/instances", 400, "invalid", 1);
+
+        MachineProvisioner.Provisioning provisioning = provisioner.provision(client, request("rejected-instance"));
+
+        awaitFailure(provisioning);
+        assertFalse(transport.hasInstance(PROJECT_ID, ZONE, "rejected-instance"));
+        awaitRolledBack("rejected-instance");
+    }
+
+    @Test
+    public void rejectedDiskInsertNeverInsertsInstance() throws Exception {
+        transport.reject("POST", "/disks", 400, "invalid", 1);
+
+        MachineProvisioner.Provisioning provisioning = provisioner.provision(client, request("rejected-disk"));
+
+        awaitFailure(provisioning);
+        assertFalse(transport.hasInstance(PROJECT_ID, ZONE, "rejected-disk"));
+        awaitRolledBack("rejected-disk");
+    }
+
+    @Test
+    public void cancelBeforeInstanceInsertRollsBackDisk() throws Exception {
+        MachineProvisioner.Provisioning provisioning = provisioner.provision(client, request("cancelled"));
+        assertTrue(provisioning.cancel());
+
+        awaitFailure(provisioning);
+        assertFalse(transport.hasInstance(PROJECT_ID, ZONE, "cancelled"));
+        awaitRolledBack("cancelled");
+    }
+
+    @Test
+    public void discardAfterInstanceInsertDeletesInstanceAndDisk() throws Exception {
+        MachineProvisioner.Provisioning provisioning = provisioner.provision(client, request("discarded"));
+        provisioning.getResult().get(10, TimeUnit.SECONDS);
+
+        provisioning.discard();
+
+        Conditions.await("the discarded instance is deleted", new Conditions.Condition() {
+            @Override
+            public boolean holds() {
+                return !transport.hasInstance(PROJECT_ID, ZONE, "discarded");
+            }
+        });
+        awaitRolledBack("discarded");
+        assertNull(provisioner.getProvisioning(PROJECT_ID, ZONE, "discarded"));
+    }
+
+    private void awaitFailure(MachineProvisioner.Provisioning provisioning) throws Exception {
+        try {
+            provisioning.getResult().get(10, TimeUnit.SECONDS);
+            fail("Provisioning should have failed");
+        } catch (ExecutionException e) {
+            assertEquals(MachineProvisioner.Phase.FAILED, provisioning.getPhase());
+            assertEquals(provisioning.getFailure(), e.getCause());
+        }
+        assertEquals(0, provisioner.getInFlightCount());
+    }
+
+    private void awaitRolledBack(final String instanceName) throws InterruptedException {
+        Conditions.await("the boot disk of " + instanceName + " is deleted", new Conditions.Condition() {
+            @Override
+            public boolean holds() {
+                return !transport.hasDisk(PROJECT_ID, ZONE, instanceName);
+            }
+        });
+        Conditions.await("the journal entry of " + instanceName + " is ended", new Conditions.Condition() {
+            @Override
+            public boolean holds() {
+                return OperationJournal.getInstance().getLiveCount() == 0;
+            }
+        });
+    }
+
+    private static ProvisioningRequest request(String instanceName) {
+        ComputeCenterConfig computeCenter = new ComputeCenterConfig(new ServiceAccountKey("test@developer.gserviceaccount.com",
+                new File("test.p12").getAbsolutePath()), PROJECT_ID, false, false, 0);
+        return new ProvisioningRequest(computeCenter, new ImageConfig("n1-standard-1", "debian-7", 0),
+                new MachineDescriptorConfig(instanceName, ZONE), IMAGE_URL, null);
+    }
+}
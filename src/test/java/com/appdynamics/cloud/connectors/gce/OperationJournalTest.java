@@ -0,0 +1,193 @@
+package com.appdynamics.cloud.connectors.gce;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OperationJournalTest {
+
+    private static final ServiceAccountKey KEY = new ServiceAccountKey("test@developer.gserviceaccount.com",
+            "/keys/test.p12");
+
+    private File file;
+    private OperationJournal journal;
+
+    @BeforeClass
+    public static void configure() {
+        TestProperties.disableJournal();
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("gce-test", ".journal");
+        file.deleteOnExit();
+        new File(file.getPath() + ".lock").deleteOnExit();
+        journal = new OperationJournal(file, false);
+    }
+
+    @After
+    public void tearDown() {
+        journal.release();
+    }
+
+    @Test
+    public void recoversOnlyLiveEntries() {
+        OperationJournal.Entry ended = journal.begin(KEY, "project", "zone", "ended", "ended", false);
+        journal.record(ended, OperationJournal.Phase.DISK_INSERT, "operation-1");
+        OperationJournal.Entry live = journal.begin(KEY, "project", "zone", "live", "live", true);
+        journal.record(live, OperationJournal.Phase.DISK_INSERT, "operation-2");
+        journal.record(live, OperationJournal.Phase.INSTANCE_INSERT, "operation-3");
+        journal.end(ended);
+
+        List<OperationJournal.Entry> recovered = reopen().recover();
+
+        assertEquals(1, recovered.size());
+        OperationJournal.Entry entry = recovered.get(0);
+        assertEquals("live", entry.getMachineName());
+        assertEquals("live", entry.getDiskName());
+        assertEquals("project", entry.getProjectId());
+        assertEquals("zone", entry.getZone());
+        assertEquals(OperationJournal.Phase.INSTANCE_INSERT, entry.getPhase());
+        assertEquals("operation-3", entry.getOperationName());
+        assertTrue(entry.isAsynchronous());
+        assertEquals(KEY, entry.getServiceAccountKey());
+    }
+
+    @Test
+    public void entriesNeverRecordedAreNotWritten() {
+        journal.begin(KEY, "project", "zone", "machine", "machine", false);
+
+        assertEquals(0, journal.getLiveCount());
+        assertTrue(reopen().recover().isEmpty());
+    }
+
+    @Test
+    public void recoverHandsOutEntriesOnce() {
+        OperationJournal.Entry entry = journal.begin(KEY, "project", "zone", "machine", "machine", false);
+        journal.record(entry, OperationJournal.Phase.DISK_DELETE, null);
+
+        OperationJournal reopened = reopen();
+
+        assertEquals(1, reopened.recover().size());
+        assertTrue(reopened.recover().isEmpty());
+        assertEquals(1, reopened.getLiveCount());
+    }
+
+    @Test
+    public void recoversEntryWithoutDiskOrOperation() {
+        OperationJournal.Entry entry = journal.begin(KEY, "project", "zone", "machine", null, false);
+        journal.record(entry, OperationJournal.Phase.INSTANCE_INSERT, null);
+
+        OperationJournal.Entry recovered = reopen().recover().get(0);
+
+        assertNull(recovered.getDiskName());
+        assertNull(recovered.getOperationName());
+    }
+
+    @Test
+    public void skipsTornLastLine() throws IOException {
+        OperationJournal.Entry entry = journal.begin(KEY, "project", "zone", "machine", "machine", false);
+        journal.record(entry, OperationJournal.Phase.DISK_INSERT, "operation-1");
+        journal.release();
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write("P\t2\tINSTANCE_INS".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        List<OperationJournal.Entry> recovered = reopen().recover();
+
+        assertEquals(1, recovered.size());
+        assertEquals("machine", recovered.get(0).getMachineName());
+    }
+
+    @Test
+    public void newEntriesDoNotReuseRecoveredIds() {
+        OperationJournal.Entry first = journal.begin(KEY, "project", "zone", "first", "first", false);
+        journal.record(first, OperationJournal.Phase.DISK_INSERT, "operation-1");
+
+        OperationJournal reopened = reopen();
+        OperationJournal.Entry second = reopened.begin(KEY, "project", "zone", "second", "second", false);
+        reopened.record(second, OperationJournal.Phase.DISK_INSERT, "operation-2");
+
+        assertEquals(2, reopened.getLiveCount());
+        assertEquals(2, reopen().recover().size());
+    }
+
+    @Test
+    public void compactionKeepsLiveEntries() {
+        OperationJournal.Entry live = journal.begin(KEY, "project", "zone", "live", "live", false);
+        journal.record(live, OperationJournal.Phase.INSTANCE_INSERT, "operation-0");
+        for (int i = 1; i <= 100; i++) {
+            OperationJournal.Entry entry = journal.begin(KEY, "project", "zone", "machine-" + i, "machine-" + i, false);
+            journal.record(entry, OperationJournal.Phase.DISK_INSERT, "operation-" + i);
+            journal.end(entry);
+        }
+        long length = file.length();
+
+        //Reopening compacts the journal down to its live entries
+        OperationJournal reopened = reopen();
+
+        assertTrue(file.length() < length);
+        assertEquals(1, reopened.recover().size());
+        assertEquals(1, reopen().recover().size());
+    }
+
+    @Test
+    public void lockedJournalIsNotUsed() {
+        OperationJournal.Entry entry = journal.begin(KEY, "project", "zone", "machine", "machine", false);
+        journal.record(entry, OperationJournal.Phase.DISK_INSERT, "operation-1");
+
+        OperationJournal second = new OperationJournal(file, false);
+
+        assertTrue(second.recover().isEmpty());
+        OperationJournal.Entry other = second.begin(KEY, "project", "zone", "other", "other", false);
+        second.record(other, OperationJournal.Phase.DISK_INSERT, "operation-2");
+        assertEquals(0, second.getLiveCount());
+        assertEquals(1, journal.getLiveCount());
+    }
+
+    @Test
+    public void missingJournalFileIsCreated() {
+        journal.release();
+        assertTrue(file.delete());
+
+        journal = new OperationJournal(file, false);
+        OperationJournal.Entry entry = journal.begin(KEY, "project", "zone", "machine", "machine", false);
+        journal.record(entry, OperationJournal.Phase.DISK_INSERT, "operation-1");
+
+        assertTrue(file.exists());
+        assertEquals(1, reopen().recover().size());
+    }
+
+    @Test
+    public void journalWithoutFileRecordsNothing() {
+        OperationJournal disabled = new OperationJournal(null, false);
+        OperationJournal.Entry entry = disabled.begin(KEY, "project", "zone", "machine", "machine", false);
+        disabled.record(entry, OperationJournal.Phase.DISK_INSERT, "operation-1");
+
+        assertEquals(0, disabled.getLiveCount());
+        assertEquals(OperationJournal.Phase.DISK_INSERT, entry.getPhase());
+        assertFalse(disabled.recover().iterator().hasNext());
+    }
+
+    /**
+     * Hands the journal over to a new instance, as a restart of the controller would.
+     */
+    private OperationJournal reopen() {
+        journal.release();
+        journal = new OperationJournal(file, false);
+        return journal;
+    }
+}
@@ -0,0 +1,131 @@
+package com.appdynamics.cloud.connectors.gce;
+
+import com.google.api.services.compute.Compute;
+import java.io.IOException;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Recovery of the entries of the {@link OperationJournal} left in flight by an earlier run.
+ */
+public class OperationRecoveryTest {
+
+    private static final String PROJECT_ID = "test-project";
+    private static final String ZONE = "us-central1-a";
+    private static final ServiceAccountKey KEY = new ServiceAccountKey("test@developer.gserviceaccount.com",
+            "/keys/test.p12");
+
+    private static GCEConnector connector;
+
+    private FakeComputeTransport transport;
+    private Compute client;
+
+    @BeforeClass
+    public static void configure() throws IOException {
+        TestProperties.useTemporaryJournal();
+        TestProperties.useShortDelays();
+        connector = new GCEConnector();
+    }
+
+    @Before
+    public void setUp() {
+        transport = new FakeComputeTransport(0, 50);
+        client = transport.newClient();
+    }
+
+    @Test
+    public void createdInstanceUnknownToControllerIsDeleted() throws Exception {
+        transport.putRunningInstance(PROJECT_ID, ZONE, "orphan");
+
+        recover(OperationJournal.Phase.INSTANCE_INSERT, "orphan", false, "operation-gone");
+
+        awaitGone("orphan");
+        assertFalse(transport.hasInstance(PROJECT_ID, ZONE, "orphan"));
+    }
+
+    @Test
+    public void createdInstanceKnownToControllerIsKept() throws Exception {
+        transport.putRunningInstance(PROJECT_ID, ZONE, "known");
+
+        recover(OperationJournal.Phase.INSTANCE_INSERT, "known", true, "operation-gone");
+
+        awaitEnded();
+        assertTrue(transport.hasInstance(PROJECT_ID, ZONE, "known"));
+        assertTrue(transport.hasDisk(PROJECT_ID, ZONE, "known"));
+    }
+
+    @Test
+    public void diskOfInstanceNeverCreatedIsDeleted() throws Exception {
+        transport.putDisk(PROJECT_ID, ZONE, "never-created");
+
+        recover(OperationJournal.Phase.INSTANCE_INSERT, "never-created", false, "operation-gone");
+
+        awaitGone("never-created");
+    }
+
+    @Test
+    public void diskInsertIsRolledBack() throws Exception {
+        transport.putDisk(PROJECT_ID, ZONE, "disk-only");
+
+        recover(OperationJournal.Phase.DISK_INSERT, "disk-only", false, "operation-gone");
+
+        awaitGone("disk-only");
+    }
+
+    @Test
+    public void diskDeleteIsFinished() throws Exception {
+        transport.putDisk(PROJECT_ID, ZONE, "rolling-back");
+
+        recover(OperationJournal.Phase.DISK_DELETE, "rolling-back", false, null);
+
+        awaitGone("rolling-back");
+    }
+
+    @Test
+    public void unreadableInstanceIsLeftInJournal() throws Exception {
+        transport.putRunningInstance(PROJECT_ID, ZONE, "unreadable");
+        transport.reject("GET", "/instances/unreadable", 403, "forbidden", 1);
+
+        OperationJournal.Entry entry = recover(OperationJournal.Phase.INSTANCE_INSERT, "unreadable", false,
+                "operation-gone");
+
+        //Neither deleted nor ended, so the next start tries again
+        Thread.sleep(500);
+        assertTrue(transport.hasInstance(PROJECT_ID, ZONE, "unreadable"));
+        assertEquals(1, OperationJournal.getInstance().getLiveCount());
+        OperationJournal.getInstance().end(entry);
+    }
+
+    private OperationJournal.Entry recover(OperationJournal.Phase phase, String machineName, boolean asynchronous,
+                                           String operationName) {
+        OperationJournal journal = OperationJournal.getInstance();
+        OperationJournal.Entry entry = journal.begin(KEY, PROJECT_ID, ZONE, machineName, machineName, asynchronous);
+        journal.record(entry, phase, operationName);
+        connector.recoverOperation(client, entry);
+        return entry;
+    }
+
+    private void awaitGone(final String machineName) throws InterruptedException {
+        Conditions.await("the boot disk of " + machineName + " is deleted", new Conditions.Condition() {
+            @Override
+            public boolean holds() {
+                return !transport.hasDisk(PROJECT_ID, ZONE, machineName);
+            }
+        });
+        awaitEnded();
+    }
+
+    private static void awaitEnded() throws InterruptedException {
+        Conditions.await("the journal entry is ended", new Conditions.Condition() {
+            @Override
+            public boolean holds() {
+                return OperationJournal.getInstance().getLiveCount() == 0;
+            }
+        });
+    }
+}
@@ -0,0 +1,151 @@
+package com.appdynamics.cloud.connectors.gce;
+
+import com.google.api.services.compute.Compute;
+import com.google.api.services.compute.model.Instance;
+import com.google.api.services.compute.model.Operation;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Which failed calls the {@link RequestScheduler} retries.
+ */
+public class RequestSchedulerTest {
+
+    private static final String PROJECT_ID = "test-project";
+    private static final String ZONE = "us-central1-a";
+
+    private final RequestScheduler scheduler = RequestScheduler.getInstance();
+
+    private FakeComputeTransport transport;
+    private Compute client;
+
+    @BeforeClass
+    public static void configure() {
+        TestProperties.disableJournal();
+        TestProperties.useShortDelays();
+    }
+
+    @Before
+    public void setUp() {
+        transport = new FakeComputeTransport(0, 0);
+        client = transport.newClient();
+    }
+
+    @Test
+    public void readIsRetriedOnServerError() throws Exception {
+        transport.putRunningInstance(PROJECT_ID, ZONE, "read-503");
+        transport.reject("GET", "/instances/read-503", 503, "backendError", 2);
+        long retries = scheduler.getRetryCount();
+
+        Instance instance = get(scheduler.submit(client, PROJECT_ID, RequestScheduler.Category.READ,
+                client.instances().get(PROJECT_ID, ZONE, "read-503")));
+
+        assertEquals("read-503", instance.getName());
+        assertEquals(2, scheduler.getRetryCount() - retries);
+    }
+
+    @Test
+    public void mutationIsNotRetriedOnServerError() throws Exception {
+        transport.putRunningInstance(PROJECT_ID, ZONE, "delete-503");
+        transport.reject("DELETE", "/instances/delete-503", 503, "backendError", 1);
+        long retries = scheduler.getRetryCount();
+
+        ListenableFuture<Operation> future = scheduler.submit(client, PROJECT_ID, RequestScheduler.Category.MUTATION,
+                client.instances().delete(PROJECT_ID, ZONE, "delete-503"));
+
+        assertTrue(Utils.isServerError(getFailure(future)));
+        assertEquals(0, scheduler.getRetryCount() - retries);
+        //Sending it again could have deleted the instance the caller was told is still there
+        assertTrue(transport.hasInstance(PROJECT_ID, ZONE, "delete-503"));
+    }
+
+    @Test
+    public void mutationIsRetriedWhenRateLimited() throws Exception {
+        transport.putRunningInstance(PROJECT_ID, ZONE, "delete-403");
+        transport.reject("DELETE", "/instances/delete-403", 403, "rateLimitExceeded", 1);
+        long retries = scheduler.getRetryCount();
+        long rateLimited = scheduler.getRateLimitedCount();
+
+        get(scheduler.submit(client, PROJECT_ID, RequestScheduler.Category.MUTATION,
+                client.instances().delete(PROJECT_ID, ZONE, "delete-403")));
+
+        assertFalse(transport.hasInstance(PROJECT_ID, ZONE, "delete-403"));
+        assertEquals(1, scheduler.getRetryCount() - retries);
+        assertEquals(1, scheduler.getRateLimitedCount() - rateLimited);
+    }
+
+    @Test
+    public void pollIsRetriedOnTooManyRequests() throws Exception {
+        transport.putRunningInstance(PROJECT_ID, ZONE, "poll-429");
+        transport.reject("GET", "/instances/poll-429", 429, "rateLimitExceeded", 1);
+        long rateLimited = scheduler.getRateLimitedCount();
+
+        get(scheduler.submit(client, PROJECT_ID, RequestScheduler.Category.OPERATION_POLL,
+                client.instances().get(PROJECT_ID, ZONE, "poll-429")));
+
+        assertEquals(1, scheduler.getRateLimitedCount() - rateLimited);
+    }
+
+    @Test
+    public void permissionErrorIsNotRetried() throws Exception {
+        transport.putRunningInstance(PROJECT_ID, ZONE, "read-403");
+        transport.reject("GET", "/instances/read-403", 403, "forbidden", 1);
+        long retries = scheduler.getRetryCount();
+        long rateLimited = scheduler.getRateLimitedCount();
+
+        getFailure(scheduler.submit(client, PROJECT_ID, RequestScheduler.Category.READ,
+                client.instances().get(PROJECT_ID, ZONE, "read-403")));
+
+        assertEquals(0, scheduler.getRetryCount() - retries);
+        assertEquals(0, scheduler.getRateLimitedCount() - rateLimited);
+    }
+
+    @Test
+    public void notFoundIsNotRetried() throws Exception {
+        long retries = scheduler.getRetryCount();
+
+        Throwable failure = getFailure(scheduler.submit(client, PROJECT_ID, RequestScheduler.Category.READ,
+                client.instances().get(PROJECT_ID, ZONE, "missing")));
+
+        assertTrue(Utils.isNotFoundError(failure));
+        assertEquals(0, scheduler.getRetryCount() - retries);
+    }
+
+    @Test
+    public void failedCallsInOneBatchAreRetriedOnTheirOwn() throws Exception {
+        transport.putRunningInstance(PROJECT_ID, ZONE, "batched-ok");
+        transport.putRunningInstance(PROJECT_ID, ZONE, "batched-503");
+        transport.reject("GET", "/instances/batched-503", 503, "backendError", 1);
+
+        ListenableFuture<Instance> ok = scheduler.submit(client, PROJECT_ID, RequestScheduler.Category.READ,
+                client.instances().get(PROJECT_ID, ZONE, "batched-ok"));
+        ListenableFuture<Instance> retried = scheduler.submit(client, PROJECT_ID, RequestScheduler.Category.READ,
+                client.instances().get(PROJECT_ID, ZONE, "batched-503"));
+
+        assertEquals("batched-ok", get(ok).getName());
+        assertEquals("batched-503", get(retried).getName());
+    }
+
+    private static <T> T get(ListenableFuture<T> future) throws Exception {
+        return future.get(10, TimeUnit.SECONDS);
+    }
+
+    private static Throwable getFailure(ListenableFuture<?> future) throws Exception {
+        try {
+            future.get(10, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+        fail("Call should have failed");
+        return null;
+    }
+}
@@ -0,0 +1,44 @@
+package com.appdynamics.cloud.connectors.gce;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * System properties the singletons of the connector read on first use. Each test class runs in a JVM of its own,
+ * so they are set once per class, before anything touches the connector.
+ */
+final class TestProperties {
+
+    private TestProperties() {
+    }
+
+    /**
+     * Points the operation journal at an empty file, rather than the one under the home directory.
+     */
+    static File useTemporaryJournal() throws IOException {
+        File file = File.createTempFile("gce-test", ".journal");
+        file.deleteOnExit();
+        new File(file.getPath() + ".lock").deleteOnExit();
+        System.setProperty(OperationJournal.FILE_PROPERTY_KEY, file.getAbsolutePath());
+        return file;
+    }
+
+    /**
+     * Turns the operation journal off.
+     */
+    static void disableJournal() {
+        System.setProperty(OperationJournal.FILE_PROPERTY_KEY, "");
+    }
+
+    /**
+     * Shortens the polling, batching and backoff delays so tests run against the fake in milliseconds.
+     */
+    static void useShortDelays() {
+        System.setProperty(OperationPoller.INITIAL_DELAY_MILLIS_PROPERTY_KEY, "10");
+        System.setProperty(OperationPoller.MAX_DELAY_MILLIS_PROPERTY_KEY, "20");
+        System.setProperty(RequestBatcher.WINDOW_MILLIS_PROPERTY_KEY, "5");
+        System.setProperty(RequestScheduler.INITIAL_BACKOFF_MILLIS_PROPERTY_KEY, "10");
+        System.setProperty(RequestScheduler.MAX_BACKOFF_MILLIS_PROPERTY_KEY, "20");
+        System.setProperty(DiskReaper.INITIAL_BACKOFF_SECONDS_PROPERTY_KEY, "0");
+    }
+}